@@ -0,0 +1,65 @@
+package edu.miamioh.cse283.htw;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Benchmarks of parsing and responding to ACTION messages in
+ * CaveServer.ClientThread (with output thrown away), in caves of several
+ * sizes.
+ *
+ * Only actions that leave the cave unchanged are used, so that every
+ * invocation does the same work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ActionBenchmark {
+
+	/** Number of rooms in the cave. */
+	@Param({"20", "1000", "100000"})
+	public int size;
+
+	/** Player whose actions are being handled. */
+	protected CaveServer.ClientThread player;
+
+	@Setup
+	public void setup() throws IOException {
+		// the CaveServer builds its cave from these:
+		System.setProperty("htw.rooms", Integer.toString(size));
+		System.setProperty("htw.seed", "42");
+		CaveServer cave = new CaveServer(null, 0);
+		ClientProxy client = new ClientProxy(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+		player = cave.new ClientThread(client);
+		player.start();
+		client.flush();
+	}
+
+	/** Picking up in a room that (after the first time) has nothing in it. */
+	@Benchmark
+	public boolean pickup() throws IOException {
+		boolean open = player.handle(Protocol.PICKUP_ACTION);
+		player.client.flush();
+		return open;
+	}
+
+	/** Moving into a room that isn't connected (no room has a negative id). */
+	@Benchmark
+	public boolean invalidMove() throws IOException {
+		boolean open = player.handle(Protocol.MOVE_ACTION + " -1");
+		player.client.flush();
+		return open;
+	}
+
+	/** An action the CaveServer doesn't understand. */
+	@Benchmark
+	public boolean unknown() throws IOException {
+		boolean open = player.handle("ACTION 9");
+		player.client.flush();
+		return open;
+	}
+}
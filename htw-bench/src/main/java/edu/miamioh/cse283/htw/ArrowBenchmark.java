@@ -0,0 +1,55 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Benchmark of arrow flight (Arrow.fly), from rooms all over the cave.
+ *
+ * Flying an arrow doesn't change the cave, so every invocation does the
+ * same kind of work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArrowBenchmark {
+
+	/** Number of rooms in the cave. */
+	@Param({"20", "100000"})
+	public int size;
+
+	/** Number of rooms an arrow flies through. */
+	@Param({"3", "10"})
+	public int range;
+
+	/** The cave. */
+	protected Cave cave;
+
+	/** A one-room path from each room. */
+	protected int[][] paths;
+
+	/** Used to pick rooms, and by arrows flying at random. */
+	protected Random rng = new Random(42);
+
+	/** Room to shoot from next. */
+	protected int next;
+
+	@Setup
+	public void setup() {
+		cave = new Cave(size, 4, rng);
+		paths = new int[size][];
+		for(int i=0; i<size; ++i) {
+			paths[i] = new int[] { cave.ids[cave.getRandomTunnel(i, rng)] };
+		}
+	}
+
+	@Benchmark
+	public Arrow fly() {
+		next = (next + 7919) % size;
+		return Arrow.fly(cave, next, paths[next], range, rng);
+	}
+}
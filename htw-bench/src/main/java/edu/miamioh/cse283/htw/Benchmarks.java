@@ -0,0 +1,45 @@
+package edu.miamioh.cse283.htw;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs all of the benchmarks, once for each of several thread counts.
+ *
+ * Usage: java -jar benchmarks.jar [thread count ...]
+ *
+ * The default thread counts are 1, 4, and the number of processors.  If the
+ * first argument starts with "-", all arguments are passed to JMH instead
+ * (e.g., "-l" lists the benchmarks).
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].startsWith("-")) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		int[] threads = { 1, 4, Runtime.getRuntime().availableProcessors() };
+		if(args.length > 0) {
+			threads = new int[args.length];
+			for(int i=0; i<args.length; ++i) {
+				threads[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for(int t : threads) {
+			run(t);
+		}
+	}
+
+	/** Runs all benchmarks with the given number of threads. */
+	protected static void run(int threads) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(Benchmarks.class.getPackage().getName() + "\\..*Benchmark\\.")
+				.threads(threads)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,32 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Benchmark of cave generation (as done by the CaveServer constructor). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CaveBenchmark {
+
+	/** Number of rooms in the cave. */
+	@Param({"20", "10000", "1000000"})
+	public int size;
+
+	/** Number of tunnels from each room. */
+	@Param({"4", "16"})
+	public int tunnels;
+
+	/** Used to generate the caves. */
+	protected Random rng = new Random(42);
+
+	@Benchmark
+	public Cave generate() {
+		return new Cave(size, tunnels, rng);
+	}
+}
@@ -0,0 +1,45 @@
+package edu.miamioh.cse283.htw;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Benchmark of encoding and sending senses to a client (whose bytes are
+ * thrown away).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientProxyBenchmark {
+
+	/** Whether the client has negotiated binary framing. */
+	@Param({"false", "true"})
+	public boolean binary;
+
+	/** Client whose output goes nowhere. */
+	protected ClientProxy client;
+
+	/** Senses of a typical room. */
+	protected Senses senses;
+
+	@Setup
+	public void setup() throws IOException {
+		client = new ClientProxy(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+		if(binary) {
+			client.useBinary();
+		}
+		client.flush();
+		senses = new Senses(42, new int[] { 7, 13, 58, 99 },
+				(1 << Room.WUMPUS) | (1 << Room.BATS), Senses.GOLD);
+	}
+
+	@Benchmark
+	public void sendSenses() throws IOException {
+		client.sendSenses(senses);
+		client.flush();
+	}
+}
@@ -0,0 +1,62 @@
+package edu.miamioh.cse283.htw;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Benchmark of broadcasting an event to every player in a cave: publishing
+ * it, and delivering it to each player's (discarded) response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventBusBenchmark {
+
+	/** Number of players. */
+	@Param({"100", "10000"})
+	public int players;
+
+	/** Whether the players use binary framing. */
+	@Param({"false", "true"})
+	public boolean binary;
+
+	/** The bus. */
+	protected EventBus bus;
+
+	/** The players' clients. */
+	protected ClientProxy[] clients;
+
+	/** Each player's cursor. */
+	protected long[] cursors;
+
+	@Setup
+	public void setup() throws IOException {
+		bus = new EventBus(1024);
+		clients = new ClientProxy[players];
+		cursors = new long[players];
+		for(int i=0; i<players; ++i) {
+			clients[i] = new ClientProxy(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+			if(binary) {
+				clients[i].useBinary();
+			}
+			clients[i].flush();
+			cursors[i] = bus.subscribe(new Mailbox());
+		}
+	}
+
+	@Benchmark
+	public long broadcast() throws IOException {
+		bus.publish(null, "A scream echoes through the cave. Kyle has eaten someone!");
+		long n = 0;
+		for(int i=0; i<players; ++i) {
+			cursors[i] = bus.deliver(cursors[i], clients[i], clients[i]);
+			clients[i].flush();
+			n += cursors[i];
+		}
+		return n;
+	}
+}
@@ -0,0 +1,103 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Benchmarks of sensing and neighbor lookup in Room.
+ *
+ * The cave is shared by all benchmark threads, so running with more than
+ * one thread also measures contention on it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomBenchmark {
+
+	/** Number of rooms in the cave. */
+	@Param({"20", "1000", "100000"})
+	public int size;
+
+	/** Number of tunnels from each room. */
+	@Param({"4", "16"})
+	public int tunnels;
+
+	/** The cave. */
+	protected Cave cave;
+
+	/** Id of the last room that each room has a tunnel to. */
+	protected int[] lastTunnel;
+
+	/** Each thread visits the rooms in its own order. */
+	@State(Scope.Thread)
+	public static class Cursor {
+		protected int i;
+
+		/** Player that this thread moves around. */
+		protected Mailbox player = new Mailbox();
+
+		/** Returns the index of the next room to visit. */
+		public int next(int size) {
+			i = (i + 7919) % size;
+			return i;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		cave = new Cave(size, tunnels, new Random(42));
+		lastTunnel = new int[size];
+		for(int i=0; i<size; ++i) {
+			int[] neighbors = cave.getNeighbors(i);
+			lastTunnel[i] = cave.getRoom(neighbors[neighbors.length-1]).getIdNumber();
+		}
+	}
+
+	@Benchmark
+	public ArrayList<String> getSensed(Cursor c) {
+		return cave.getRoom(c.next(size)).getSensed();
+	}
+
+	/** Gets the encoded senses that are sent to a client (the hot path). */
+	@Benchmark
+	public Senses getSenses(Cursor c) {
+		return cave.getRoom(c.next(size)).getSenses();
+	}
+
+	/** Gets senses just after they were invalidated, as when gold is picked up. */
+	@Benchmark
+	public Senses getSensesInvalidated(Cursor c) {
+		int i = c.next(size);
+		cave.invalidate(i);
+		return cave.getSenses(i);
+	}
+
+	/** Looks up the last tunnel from a room (the worst case for a scan). */
+	@Benchmark
+	public Room getRoom(Cursor c) {
+		int i = c.next(size);
+		return cave.getRoom(i).getRoom(lastTunnel[i]);
+	}
+
+	/** Looks up a room that isn't connected (e.g., a player's typo). */
+	@Benchmark
+	public Room getRoomMissing(Cursor c) {
+		return cave.getRoom(c.next(size)).getRoom(-1);
+	}
+
+	/** Enters and leaves the same room as every other thread (e.g., the
+	 * room everyone crowds into when a cave opens).
+	 */
+	@Benchmark
+	public int enterLeaveCrowded(Cursor c) {
+		cave.enterRoom(0, c.player);
+		int n = cave.getOccupants(0);
+		cave.leaveRoom(0, c.player);
+		return n;
+	}
+}
@@ -0,0 +1,87 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.random.RandomGenerator;
+
+/** The flight of an arrow through a cave.
+ *
+ * An arrow flies through up to range rooms, following the path of room ids
+ * that the player gave.  Where the path runs out, or names a room that the
+ * arrow's current room has no tunnel to, the arrow takes a tunnel at random
+ * instead (never straight back the way it came, unless there's no other
+ * way).  It stops in the first room that holds a wumpus.
+ *
+ * Each hop is a lookup in the cave's tunnel arrays, so a shot takes time
+ * proportional to its range.  The rooms the arrow flies through are kept
+ * (see getRooms()), so that players in them can be told.  If the range is
+ * within Cave.REACH and no wumpus is that close, the shot can't hit
+ * anything, and the rooms aren't checked for wumpuses.
+ */
+public class Arrow {
+
+	/** Index of the room whose wumpus the arrow hit, or -1 if it missed. */
+	protected int hit = -1;
+
+	/** Number of rooms the arrow flew through before it hit (or missed). */
+	protected int hops;
+
+	/** Indices of the rooms the arrow flew through, in order. */
+	protected int[] rooms;
+
+	/** Returns true if the arrow hit a wumpus. */
+	public boolean isHit() {
+		return hit >= 0;
+	}
+
+	/** Returns the room whose wumpus the arrow hit, or null if it missed. */
+	public Room getHit(Cave cave) {
+		return hit < 0 ? null : cave.getRoom(hit);
+	}
+
+	/** Returns the number of rooms the arrow flew through. */
+	public int getHops() {
+		return hops;
+	}
+
+	/** Returns the indices of the rooms the arrow flew through, in order
+	 * (only the first getHops() are used).
+	 */
+	public int[] getRooms() {
+		return rooms;
+	}
+
+	/** Flies an arrow from room from along the given path of room ids.
+	 *
+	 * Returns null if the path is empty, or its first room isn't connected to
+	 * from (the arrow breaks on the wall).
+	 */
+	public static Arrow fly(Cave cave, int from, int[] path, int range, RandomGenerator rng) {
+		int next = (path.length > 0) ? cave.getTunnel(from, path[0]) : -1;
+		if(next < 0) {
+			return null;
+		}
+		Arrow a = new Arrow();
+		a.rooms = new int[range];
+		boolean mayHit = range > Cave.REACH || cave.isWumpusWithinReach(from);
+		int prev = from;
+		int current = next;
+		for(a.hops=1; ; ++a.hops) {
+			a.rooms[a.hops-1] = current;
+			if(mayHit && cave.getDanger(current) == Room.WUMPUS) {
+				a.hit = current;
+				return a;
+			}
+			if(a.hops == range) {
+				return a;
+			}
+			next = (a.hops < path.length) ? cave.getTunnel(current, path[a.hops]) : -1;
+			if(next < 0 || next == prev) {
+				boolean deadEnd = cave.offsets[current+1] - cave.offsets[current] < 2;
+				do {
+					next = cave.getRandomTunnel(current, rng);
+				} while(next == prev && !deadEnd);
+			}
+			prev = current;
+			current = next;
+		}
+	}
+}
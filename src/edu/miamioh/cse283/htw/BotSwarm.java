@@ -0,0 +1,279 @@
+package edu.miamioh.cse283.htw;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Headless load generator: many simulated players playing at once.
+ *
+ * The BotSwarm class takes the following command-line parameters:
+ *
+ * <Hostname of CaveSystemServer> <port number of CaveSystemServer>
+ * <number of bots> <duration in seconds>
+ *
+ * E.g., "localhost 1234 1000 60"
+ *
+ * Each bot connects to the CaveSystemServer, follows the HANDOFF, and then
+ * plays using binary framing and pipelining, choosing actions according to
+ * a policy.  When a bot dies (or climbs out), it reconnects and starts over.
+ * When a bot is migrated to another cave, it follows the HANDOFF there.
+ * Progress is reported every few seconds, and a summary of action rate,
+ * action latency, and handoff time is reported at the end.
+ *
+ * The following system properties are also read:
+ *   htw.botPolicy   "random" (the default) or "cautious"; see Bot.choose().
+ *   htw.botDepth    number of actions each bot keeps in flight (default 1).
+ *   htw.botThink    milliseconds each bot waits between actions (default 0).
+ */
+public class BotSwarm {
+
+	/** Address of the CaveSystemServer. */
+	protected InetAddress addr;
+
+	/** Port number of the CaveSystemServer. */
+	protected int port;
+
+	/** Policy used to choose actions. */
+	protected String policy;
+
+	/** Number of actions each bot keeps in flight. */
+	protected int depth;
+
+	/** Milliseconds between actions. */
+	protected long think;
+
+	/** Set when the bots should stop. */
+	protected volatile boolean stopped;
+
+	/** Number of actions that have been answered. */
+	protected AtomicLong actions;
+
+	/** Number of times a bot died (or climbed out) and reconnected. */
+	protected AtomicLong deaths;
+
+	/** Number of times a bot was migrated to another cave. */
+	protected AtomicLong migrations;
+
+	/** Number of times a bot's connection failed. */
+	protected AtomicLong errors;
+
+	/** Time from sending an action to receiving its SEQ. */
+	protected LatencyHistogram actionLatency;
+
+	/** Time from connecting to the CaveSystemServer to being ready to play. */
+	protected LatencyHistogram handoffLatency;
+
+	/** Constructor. */
+	public BotSwarm(InetAddress addr, int port) {
+		this.addr = addr;
+		this.port = port;
+		this.policy = System.getProperty("htw.botPolicy", "random");
+		this.depth = Math.max(1, Integer.getInteger("htw.botDepth", 1));
+		this.think = Long.getLong("htw.botThink", 0);
+		this.actions = new AtomicLong();
+		this.deaths = new AtomicLong();
+		this.migrations = new AtomicLong();
+		this.errors = new AtomicLong();
+		this.actionLatency = new LatencyHistogram();
+		this.handoffLatency = new LatencyHistogram();
+	}
+
+	/** A single simulated player. */
+	public class Bot implements Runnable {
+		/** Proxy to the cave this bot is playing in. */
+		protected CaveServerProxy cave;
+
+		/** Used to choose actions. */
+		protected Random rng;
+
+		/** Times at which in-flight actions were sent, indexed by sequence. */
+		protected long[] sent;
+
+		/** Sequence number of the last action sent. */
+		protected int lastSent;
+
+		/** Senses on which the bot last picked something up (pickups don't
+		 * send new senses, so the flags stay set until the bot moves).
+		 */
+		protected Senses pickedUp;
+
+		/** Sequence number of the last action answered. */
+		protected int lastAnswered;
+
+		/** Constructor. */
+		public Bot(long seed) {
+			this.rng = new Random(seed);
+			this.sent = new long[depth];
+		}
+
+		/** Connects to the cave system, and returns once the bot can play. */
+		protected void connect() throws IOException {
+			long start = System.nanoTime();
+			cave = new CaveServerProxy(new Socket(addr, port));
+			cave.connect("");
+			String line = cave.nextLine();
+			while(line != null && !line.startsWith(Protocol.HANDOFF)) {
+				line = cave.nextLine();
+			}
+			if(line == null) {
+				throw new IOException("CaveSystemServer closed the connection");
+			}
+			follow(line);
+			handoffLatency.record(System.nanoTime() - start);
+		}
+
+		/** Follows a HANDOFF message, and returns once the bot can play. */
+		protected void follow(String handoff) throws IOException {
+			String[] words = handoff.split(" ");
+			cave = cave.handoff(InetAddress.getByName(words[1]), Integer.parseInt(words[2]));
+			if(words.length > 3) {
+				cave.resume(words[3]);
+			}
+			cave.binary();
+			cave.pipeline();
+			lastSent = 0;
+			lastAnswered = 0;
+			awaitSequence(0);
+		}
+
+		/** Reads until the given SEQ arrives; returns false if the bot died. */
+		protected boolean awaitSequence(int n) throws IOException {
+			while(true) {
+				String line = cave.nextLine();
+				if(line == null || line.startsWith(Protocol.DIED)) {
+					return false;
+				}
+				if(line.startsWith(Protocol.HANDOFF)) {
+					// migrated; actions still in flight are lost with the old cave:
+					migrations.incrementAndGet();
+					follow(line);
+					return true;
+				}
+				if(line.startsWith(Protocol.SEQ)) {
+					int seq = Integer.parseInt(line.substring(Protocol.SEQ.length() + 1));
+					if(seq > 0) {
+						actionLatency.record(System.nanoTime() - sent[seq % depth]);
+						actions.incrementAndGet();
+					}
+					lastAnswered = seq;
+					if(seq >= n) {
+						return true;
+					}
+				}
+			}
+		}
+
+		/** Chooses and sends an action, based on the current senses.
+		 *
+		 * The "random" policy picks up anything it sees, and otherwise mostly
+		 * moves, sometimes shoots, and occasionally tries to climb.  The
+		 * "cautious" policy also shoots whenever it smells the wumpus, and
+		 * only climbs when it smells wood.
+		 */
+		protected void choose() throws IOException {
+			Senses senses = cave.getSenses();
+			int[] rooms = senses.neighbors;
+			String room = rooms.length > 0 ? Integer.toString(rooms[rng.nextInt(rooms.length)]) : "0";
+			int roll = rng.nextInt(100);
+			boolean cautious = "cautious".equals(policy);
+
+			if((senses.flags & (Senses.GOLD | Senses.ARROWS)) != 0 && senses != pickedUp) {
+				pickedUp = senses;
+				cave.pickup();
+			} else if(cautious && senses.near(Room.WUMPUS) && roll < 50) {
+				cave.shoot(room);
+			} else if(roll < 5 && (!cautious || senses.near(Room.LADDER))) {
+				cave.climb();
+			} else if(roll < 20) {
+				cave.shoot(room);
+			} else {
+				cave.move(room);
+			}
+		}
+
+		/** Play until stopped. */
+		public void run() {
+			while(!stopped) {
+				try {
+					connect();
+					boolean alive = true;
+					while(alive && !stopped) {
+						// keep up to depth actions in flight:
+						while(lastSent - lastAnswered < depth) {
+							++lastSent;
+							sent[lastSent % depth] = System.nanoTime();
+							choose();
+						}
+						alive = awaitSequence(lastAnswered + 1);
+						if(think > 0) {
+							Thread.sleep(think);
+						}
+					}
+					if(!alive) {
+						deaths.incrementAndGet();
+					}
+				} catch(Exception ex) {
+					errors.incrementAndGet();
+					try { Thread.sleep(100); } catch(InterruptedException ex2) { }
+				} finally {
+					try { if(cave != null) cave.close(); } catch(IOException ex) { }
+				}
+			}
+		}
+	}
+
+	/** Runs the given number of bots for the given number of seconds. */
+	public void run(int bots, int seconds) throws InterruptedException {
+		ExecutorService executor = HandlerExecutors.create();
+		for(int i=0; i<bots; ++i) {
+			executor.execute(new Bot(i));
+		}
+
+		// report progress every few seconds:
+		long start = System.nanoTime();
+		long lastTime = start;
+		long lastActions = 0;
+		for(int s=1; s<=seconds; ++s) {
+			Thread.sleep(1000);
+			if(s % 5 == 0 || s == seconds) {
+				long now = System.nanoTime();
+				long n = actions.get();
+				System.out.println(String.format("%ds: %.0f actions/s, %d deaths, %d errors",
+						s, (n - lastActions) / ((now - lastTime) / 1e9), deaths.get(), errors.get()));
+				lastTime = now;
+				lastActions = n;
+			}
+		}
+		stopped = true;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+
+		System.out.println(String.format("%d bots, %.1fs: %d actions (%.0f actions/s), %d deaths, %d migrations, %d errors",
+				bots, elapsed, actions.get(), actions.get() / elapsed, deaths.get(), migrations.get(), errors.get()));
+		System.out.println("action latency:  " + actionLatency.summary());
+		System.out.println("handoff latency: " + handoffLatency.summary());
+		System.exit(0);
+	}
+
+	/** Main method (run the BotSwarm). */
+	public static void main(String[] args) throws Exception {
+		InetAddress addr = InetAddress.getByName("localhost");
+		int cssPortBase = 1234;
+		int bots = 100;
+		int seconds = 30;
+
+		if(args.length > 0) {
+			addr = InetAddress.getByName(args[0]);
+			cssPortBase = Integer.parseInt(args[1]);
+			bots = Integer.parseInt(args[2]);
+			seconds = Integer.parseInt(args[3]);
+		}
+
+		BotSwarm swarm = new BotSwarm(addr, cssPortBase);
+		swarm.run(bots, seconds);
+	}
+}
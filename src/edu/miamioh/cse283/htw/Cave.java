@@ -0,0 +1,726 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.random.RandomGenerator;
+
+/** The rooms of a cave, and the tunnels between them.
+ *
+ * Rooms are numbered by index from 0 to size()-1; each also has an id, which
+ * is what players see.  Everything about a room is kept in arrays indexed by
+ * room, and the tunnels are kept in compressed sparse row form:
+ * the tunnels from room i are tunnels[offsets[i]] to tunnels[offsets[i+1]-1].
+ * This lets one cave hold millions of rooms in tens of megabytes.  Room
+ * objects are only thin views onto these arrays, made as they are needed.
+ *
+ * Rows of up to MAX_SCAN tunnels hold the indices of the connected rooms,
+ * and are scanned.  Longer rows are open-addressing tables hashed by the id
+ * of the connected room (with -1 for empty slots), at most half full, so
+ * that looking up a tunnel by id takes constant time however many there are.
+ * Every tunnel goes both ways.
+ *
+ * The danger, gold and arrows in a room are packed into a single long (see
+ * pack()), and change only by compare-and-set, so that players acting in the
+ * same room never lock, and never both get the same gold: see takeGold(),
+ * takeArrows(), drop(), killWumpus() and moveWumpus().
+ *
+ * What a player senses in each room is cached, already encoded, and is only
+ * rendered again after something it depends on changes: the gold or arrows
+ * in the room, the danger in a neighboring room, or whether the room has
+ * other players in it.
+ *
+ * The players in each room are kept in concurrent sets, so that players
+ * entering and leaving a crowded room (e.g., the ladder room) don't wait for
+ * each other, along with a count of them.  Only rooms that have players have
+ * sets.  Players are known by their Mailboxes, so that something happening in
+ * one part of the cave can be told to just the players near it (see tell()).
+ *
+ * Each room also keeps a summary of the dangers around it, brought up to
+ * date by reindex() whenever a danger changes: a bitmask of the dangers in
+ * neighboring rooms, and the number of wumpuses within REACH tunnels.  Sensing a room, or checking
+ * whether an arrow could hit anything, is then a few bit operations rather
+ * than a walk over the tunnels.
+ *
+ * The cave also keeps an index of where each kind of danger is (see
+ * locateRandom()), so that finding, say, a wumpus doesn't mean searching every
+ * room.  A cave may have several wumpuses.
+ */
+public class Cave {
+
+	/** Rows with at most this many tunnels are scanned rather than hashed. */
+	public static final int MAX_SCAN = 8;
+
+	/** Wumpuses are counted within this many tunnels of each room. */
+	public static final int REACH = 3;
+
+	/** Number of rooms. */
+	protected int size;
+
+	/** Id of each room. */
+	protected int[] ids;
+
+	/** Start of each room's row in tunnels; offsets[size] is the end. */
+	protected int[] offsets;
+
+	/** Indices of connected rooms (see above). */
+	protected int[] tunnels;
+
+	/** Danger, gold and arrows in each room, packed by pack(). */
+	protected AtomicLongArray state;
+
+	/** Danger in each room, as of the last reindex() (guarded by this). */
+	protected byte[] indexed;
+
+	/** Largest amount of gold, or number of arrows, that a room can hold. */
+	public static final int MAX_ITEMS = (1 << 28) - 1;
+
+	/** Dangers in the rooms next to each room; bit (1 << danger) for each. */
+	protected byte[] near;
+
+	/** Number of wumpuses within REACH tunnels of each room. */
+	protected int[] wumpuses;
+
+	/** Indices of the rooms holding each danger (other than NONE); only the
+	 * first counts[d] entries of located[d] are used.
+	 */
+	protected int[][] located;
+
+	/** Number of rooms holding each danger. */
+	protected int[] counts;
+
+	/** Position of each room in the located array for its danger. */
+	protected int[] place;
+
+	/** Cached senses of each room; null, or a stale marker, if not cached. */
+	protected AtomicReferenceArray<Senses> senses;
+
+	/** Players in each room, by their mailboxes (see enterRoom() and
+	 * leaveRoom()).
+	 */
+	protected ConcurrentHashMap<Integer, Set<Mailbox>> players;
+
+	/** Number of players in each room. */
+	protected AtomicIntegerArray occupants;
+	/** Constructor; generates a cave of the given size, with one wumpus. */
+	public Cave(int size, int tunnels, RandomGenerator rng) {
+		this(size, tunnels, 1, rng);
+	}
+
+	/** Constructor; generates a cave of the given size.
+	 *
+	 * The rooms are connected in a ring, each to the tunnels/2 rooms on
+	 * either side of it, and are given distinct random ids less than
+	 * max(100, size).  If there aren't wumpusCount rooms free of other
+	 * dangers, each free room gets a wumpus.
+	 */
+	public Cave(int size, int tunnels, int wumpusCount, RandomGenerator rng) {
+		this.size = size;
+		this.ids = new int[size];
+		byte[] danger = new byte[size];
+		int[] gold = new int[size];
+		this.players = new ConcurrentHashMap<Integer, Set<Mailbox>>();
+		this.occupants = new AtomicIntegerArray(size);
+		this.senses = new AtomicReferenceArray<Senses>(size);
+
+		// give the rooms random ids, the first size of a shuffle of all ids:
+		int[] shuffled = new int[Math.max(100, size)];
+		for(int i=0; i<shuffled.length; ++i) {
+			shuffled[i] = i;
+		}
+		for(int i=0; i<size; ++i) {
+			int j = i + rng.nextInt(shuffled.length - i);
+			ids[i] = shuffled[j];
+			shuffled[j] = shuffled[i];
+		}
+
+		// connect them to each other:
+		int half = Math.min(tunnels / 2, (size - 1) / 2);
+		int[] row = new int[2 * half];
+		this.offsets = new int[size + 1];
+		this.tunnels = new int[size * rowLength(row.length)];
+		for(int i=0; i<size; ++i) {
+			int n = 0;
+			for(int j=-half; j<=half; ++j) {
+				if(j != 0) {
+					row[n++] = (i + j + size) % size;
+				}
+			}
+			offsets[i+1] = offsets[i] + setRow(offsets[i], row, n);
+		}
+
+		// place the dangers and gold:
+		int wumpusCheck = 0;
+		for(int i=0; i<size; ++i) {
+			int dangerCheck = rng.nextInt(101);
+			if(dangerCheck < 10 && wumpusCheck < wumpusCount) {
+				danger[i] = Room.WUMPUS;
+				++wumpusCheck;
+			} else if(dangerCheck > 20 && dangerCheck < 30) {
+				danger[i] = Room.BATS;
+			} else if(dangerCheck > 40 && dangerCheck < 50) {
+				danger[i] = Room.HOLE;
+			} else if(dangerCheck > 50 && dangerCheck < 75) {
+				gold[i] = 150;
+			}
+		}
+
+		// give a room a ladder
+		int ladder = size / 2;
+		if(danger[ladder] == Room.WUMPUS) {
+			--wumpusCheck;
+		}
+		danger[ladder] = Room.LADDER;
+		// there can't be more wumpuses than rooms free to hold them:
+		int free = 0;
+		for(int i=0; i<size; ++i) {
+			if(danger[i] == Room.NONE) {
+				++free;
+			}
+		}
+		wumpusCount = Math.min(wumpusCount, wumpusCheck + free);
+		while(wumpusCheck < wumpusCount) {
+			int wumpusRoom = rng.nextInt(size);
+			if(danger[wumpusRoom] == Room.NONE) {
+				danger[wumpusRoom] = Room.WUMPUS;
+				++wumpusCheck;
+			}
+		}
+
+		this.state = new AtomicLongArray(size);
+		for(int i=0; i<size; ++i) {
+			state.set(i, pack(danger[i], gold[i], 0));
+		}
+		this.indexed = danger;
+
+		// index where the dangers are:
+		this.located = new int[Room.LADDER + 1][];
+		this.counts = new int[Room.LADDER + 1];
+		this.place = new int[size];
+		for(int d=0; d<located.length; ++d) {
+			located[d] = new int[4];
+		}
+		for(int i=0; i<size; ++i) {
+			if(danger[i] != Room.NONE) {
+				addLocation(i, danger[i]);
+			}
+		}
+
+		// summarize the dangers around each room:
+		this.near = new byte[size];
+		this.wumpuses = new int[size];
+		for(int i=0; i<size; ++i) {
+			near[i] = hazardsAround(i, danger);
+			if(danger[i] == Room.WUMPUS) {
+				for(int j : within(i, REACH)) {
+					++wumpuses[j];
+				}
+			}
+		}
+	}
+
+	/** Returns the length of a row that holds the given number of tunnels. */
+	protected static int rowLength(int n) {
+		if(n <= MAX_SCAN) {
+			return n;
+		}
+		return Integer.highestOneBit(n - 1) << 2;
+	}
+
+	/** Writes a row of n tunnels starting at start, and returns its length. */
+	protected int setRow(int start, int[] row, int n) {
+		int length = rowLength(n);
+		if(length == n) {
+			System.arraycopy(row, 0, tunnels, start, n);
+			return n;
+		}
+		Arrays.fill(tunnels, start, start + length, -1);
+		for(int k=0; k<n; ++k) {
+			tunnels[start + slot(start, length, ids[row[k]])] = row[k];
+		}
+		return length;
+	}
+
+	/** Returns the slot within a hashed row that holds (or would hold) id. */
+	protected int slot(int start, int length, int id) {
+		int h = id * 0x9E3779B9;
+		int i = (h ^ (h >>> 16)) & (length - 1);
+		while(tunnels[start + i] >= 0 && ids[tunnels[start + i]] != id) {
+			i = (i + 1) & (length - 1);
+		}
+		return i;
+	}
+
+	/** Returns the number of rooms. */
+	public int size() {
+		return size;
+	}
+
+	/** Returns a view of the room with the given index. */
+	public Room getRoom(int index) {
+		return new Room(this, index);
+	}
+
+	/** Returns the index of the room with the given id that room i has a
+	 * tunnel to, or -1 if there is no such tunnel.
+	 */
+	public int getTunnel(int i, int id) {
+		int start = offsets[i];
+		int length = offsets[i+1] - start;
+		if(length <= MAX_SCAN) {
+			for(int k=start; k<start+length; ++k) {
+				if(ids[tunnels[k]] == id) {
+					return tunnels[k];
+				}
+			}
+			return -1;
+		}
+		return tunnels[start + slot(start, length, id)];
+	}
+
+	/** Returns the index of a room that room i has a tunnel to, chosen at
+	 * random (room i must have at least one tunnel).
+	 */
+	public int getRandomTunnel(int i, RandomGenerator rng) {
+		int start = offsets[i];
+		int length = offsets[i+1] - start;
+		int t = tunnels[start + rng.nextInt(length)];
+		while(t < 0) {
+			// hashed rows are at least half full, so this is quick:
+			t = tunnels[start + rng.nextInt(length)];
+		}
+		return t;
+	}
+
+	/** Returns the indices of the rooms that room i has tunnels to. */
+	public int[] getNeighbors(int i) {
+		int[] t = new int[offsets[i+1] - offsets[i]];
+		int n = 0;
+		for(int k=offsets[i]; k<offsets[i+1]; ++k) {
+			if(tunnels[k] >= 0) {
+				t[n++] = tunnels[k];
+			}
+		}
+		return n == t.length ? t : Arrays.copyOf(t, n);
+	}
+
+	/** Returns the bitmask of the given dangers in the rooms next to room i. */
+	protected byte hazardsAround(int i, byte[] danger) {
+		int h = 0;
+		for(int k=offsets[i]; k<offsets[i+1]; ++k) {
+			if(tunnels[k] >= 0 && danger[tunnels[k]] != Room.NONE) {
+				h |= 1 << danger[tunnels[k]];
+			}
+		}
+		return (byte)h;
+	}
+
+	/** Returns the indices of the rooms within the given number of tunnels of
+	 * room i (including i itself), each once.
+	 *
+	 * The rooms seen so far are kept in a small open-addressing set, which
+	 * grows with the number of rooms found rather than the size of the cave.
+	 */
+	public int[] within(int i, int hops) {
+		int[] found = new int[16];
+		int[] seen = new int[32];
+		Arrays.fill(seen, -1);
+		int n = 0;
+		found[n++] = i;
+		addSeen(seen, i);
+		int start = 0;
+		for(int h=0; h<hops; ++h) {
+			int end = n;
+			for(int f=start; f<end; ++f) {
+				int r = found[f];
+				for(int k=offsets[r]; k<offsets[r+1]; ++k) {
+					int t = tunnels[k];
+					if(t >= 0 && addSeen(seen, t)) {
+						if(n == found.length) {
+							found = Arrays.copyOf(found, 2 * n);
+						}
+						found[n++] = t;
+						if(2 * n > seen.length) {
+							// keep the set at most half full:
+							seen = new int[2 * seen.length];
+							Arrays.fill(seen, -1);
+							for(int g=0; g<n; ++g) {
+								addSeen(seen, found[g]);
+							}
+						}
+					}
+				}
+			}
+			start = end;
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	/** Adds room r to a set of rooms kept by within() (a power-of-two table,
+	 * with -1 in empty slots); returns false if it was already there.
+	 */
+	protected static boolean addSeen(int[] seen, int r) {
+		int h = r * 0x9E3779B9;
+		int i = (h ^ (h >>> 16)) & (seen.length - 1);
+		while(seen[i] >= 0) {
+			if(seen[i] == r) {
+				return false;
+			}
+			i = (i + 1) & (seen.length - 1);
+		}
+		seen[i] = r;
+		return true;
+	}
+
+	/** Returns the bitmask of dangers in the rooms next to room i; bit
+	 * (1 << danger) is set for each danger.
+	 */
+	public int getHazards(int i) {
+		return near[i];
+	}
+
+	/** Returns true if there is a wumpus within REACH tunnels of room i. */
+	public boolean isWumpusWithinReach(int i) {
+		return wumpuses[i] > 0;
+	}
+
+	/** Adds room i to the index of rooms holding danger d. */
+	protected void addLocation(int i, int d) {
+		if(counts[d] == located[d].length) {
+			located[d] = Arrays.copyOf(located[d], counts[d] * 2);
+		}
+		place[i] = counts[d];
+		located[d][counts[d]++] = i;
+	}
+
+	/** Removes room i from the index of rooms holding danger d. */
+	protected void removeLocation(int i, int d) {
+		int last = located[d][--counts[d]];
+		located[d][place[i]] = last;
+		place[last] = place[i];
+	}
+
+	/** Returns the index of a room holding the given danger, chosen at random,
+	 * or -1 if there is none.
+	 */
+	public synchronized int locateRandom(int d, RandomGenerator rng) {
+		return counts[d] == 0 ? -1 : located[d][rng.nextInt(counts[d])];
+	}
+
+	/** Packs the state of a room into a long. */
+	protected static long pack(int danger, int gold, int arrows) {
+		gold = Math.min(Math.max(gold, 0), MAX_ITEMS);
+		arrows = Math.min(Math.max(arrows, 0), MAX_ITEMS);
+		return (danger & 0xFF) | ((long)gold << 8) | ((long)arrows << 36);
+	}
+
+	/** Returns the danger in a packed state. */
+	protected static int danger(long s) {
+		return (int)(s & 0xFF);
+	}
+
+	/** Returns the gold in a packed state. */
+	protected static int gold(long s) {
+		return (int)((s >>> 8) & MAX_ITEMS);
+	}
+
+	/** Returns the arrows in a packed state. */
+	protected static int arrows(long s) {
+		return (int)(s >>> 36);
+	}
+
+	/** Returns the danger in room i. */
+	public int getDanger(int i) {
+		return danger(state.get(i));
+	}
+
+	/** Returns the gold in room i. */
+	public int getGold(int i) {
+		return gold(state.get(i));
+	}
+
+	/** Returns the arrows in room i. */
+	public int getArrows(int i) {
+		return arrows(state.get(i));
+	}
+
+	/** Atomically replaces the state of room i with update (if it differs),
+	 * provided that room i is still in state expected; returns true if so.
+	 *
+	 * This is the only way that a room's state changes, and it takes care of
+	 * the cached senses and the index.
+	 */
+	protected boolean transition(int i, long expected, long update) {
+		if(expected == update) {
+			return true;
+		}
+		if(!state.compareAndSet(i, expected, update)) {
+			return false;
+		}
+		if(((gold(expected) > 0) != (gold(update) > 0))
+				|| ((arrows(expected) > 0) != (arrows(update) > 0))) {
+			invalidate(i);
+		}
+		if(danger(expected) != danger(update)) {
+			reindex(i);
+		}
+		return true;
+	}
+
+	/** Sets the danger in room i. */
+	public void setDanger(int i, int d) {
+		long s;
+		do {
+			s = state.get(i);
+		} while(!transition(i, s, pack(d, gold(s), arrows(s))));
+	}
+
+	/** Sets the gold in room i. */
+	public void setGold(int i, int g) {
+		long s;
+		do {
+			s = state.get(i);
+		} while(!transition(i, s, pack(danger(s), g, arrows(s))));
+	}
+
+	/** Sets the arrows in room i. */
+	public void setArrows(int i, int a) {
+		long s;
+		do {
+			s = state.get(i);
+		} while(!transition(i, s, pack(danger(s), gold(s), a)));
+	}
+
+	/** Takes all the gold in room i, and returns how much there was. */
+	public int takeGold(int i) {
+		long s;
+		do {
+			s = state.get(i);
+		} while(!transition(i, s, pack(danger(s), 0, arrows(s))));
+		return gold(s);
+	}
+
+	/** Takes all the arrows in room i, and returns how many there were. */
+	public int takeArrows(int i) {
+		long s;
+		do {
+			s = state.get(i);
+		} while(!transition(i, s, pack(danger(s), gold(s), 0)));
+		return arrows(s);
+	}
+
+	/** Adds gold and arrows to room i, both at once. */
+	public void drop(int i, int g, int a) {
+		long s;
+		do {
+			s = state.get(i);
+		} while(!transition(i, s, pack(danger(s), gold(s) + g, arrows(s) + a)));
+	}
+
+	/** Kills the wumpus in room i, leaving the given reward in gold behind.
+	 *
+	 * Returns false if there is no wumpus in room i (e.g., because another
+	 * arrow just killed it).
+	 */
+	public boolean killWumpus(int i, int reward) {
+		long s;
+		do {
+			s = state.get(i);
+			if(danger(s) != Room.WUMPUS) {
+				return false;
+			}
+		} while(!transition(i, s, pack(Room.NONE, gold(s) + reward, arrows(s))));
+		return true;
+	}
+
+	/** Moves the wumpus in room from to room to, if room to has no danger;
+	 * returns false (and changes nothing) if it can't.
+	 *
+	 * The wumpus leaves room from before it enters room to, so that no other
+	 * player can ever see (or kill) it in both.  If room to turns out to be
+	 * taken, the wumpus goes back to room from; in the unlikely event that
+	 * another wumpus has moved there in the meantime, it stays in room to's
+	 * neighborhood, or failing that, it is gone.
+	 */
+	public boolean moveWumpus(int from, int to) {
+		if(from == to || getDanger(to) != Room.NONE || !changeDanger(from, Room.WUMPUS, Room.NONE)) {
+			return false;
+		}
+		if(changeDanger(to, Room.NONE, Room.WUMPUS)) {
+			return true;
+		}
+		if(!changeDanger(from, Room.NONE, Room.WUMPUS)) {
+			for(int k=offsets[to]; k<offsets[to+1]; ++k) {
+				if(tunnels[k] >= 0 && changeDanger(tunnels[k], Room.NONE, Room.WUMPUS)) {
+					break;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Changes the danger in room i from one danger to another; returns false
+	 * if room i doesn't hold danger from.
+	 */
+	protected boolean changeDanger(int i, int from, int to) {
+		long s;
+		do {
+			s = state.get(i);
+			if(danger(s) != from) {
+				return false;
+			}
+		} while(!transition(i, s, pack(to, gold(s), arrows(s))));
+		return true;
+	}
+
+	/** Brings the index, and the summaries of the rooms around room i, up to
+	 * date with the danger in room i.
+	 *
+	 * Dangers change rarely, so this simply holds the cave's lock.  Whatever
+	 * order concurrent changes are reindexed in, the last one brings every
+	 * summary up to date with the room's current state.
+	 */
+	protected synchronized void reindex(int i) {
+		int old = indexed[i];
+		int d = getDanger(i);
+		if(old == d) {
+			return;
+		}
+		if(old != Room.NONE) {
+			removeLocation(i, old);
+		}
+		if(d != Room.NONE) {
+			addLocation(i, d);
+		}
+		indexed[i] = (byte)d;
+		for(int k=offsets[i]; k<offsets[i+1]; ++k) {
+			int j = tunnels[k];
+			if(j >= 0) {
+				near[j] = hazardsAround(j, indexed);
+				invalidate(j);
+			}
+		}
+		if(old == Room.WUMPUS || d == Room.WUMPUS) {
+			int delta = (d == Room.WUMPUS) ? 1 : -1;
+			for(int j : within(i, REACH)) {
+				wumpuses[j] += delta;
+			}
+		}
+	}
+
+	/** Marks the cached senses of room i as stale.
+	 *
+	 * Each invalidation stores a new marker, so that getSenses() can tell if
+	 * room i changed while it was rendering, and not cache what it rendered.
+	 */
+	protected void invalidate(int i) {
+		senses.set(i, new Senses(-1, null, 0, 0));
+	}
+
+	/** Returns what a player senses in room i, encoded (see Senses.encode()),
+	 * when there are (or aren't) other players there.
+	 *
+	 * Whether there are other players is part of the cache key: a room's
+	 * cached senses are replaced when they're asked for the other way.
+	 */
+	public Senses getSenses(int i, boolean crowded) {
+		int want = crowded ? Senses.PLAYERS : 0;
+		Senses cached = senses.get(i);
+		if(cached != null && cached.neighbors != null && (cached.flags & Senses.PLAYERS) == want) {
+			return cached;
+		}
+		Senses fresh = renderSenses(i, want).encode();
+		senses.compareAndSet(i, cached, fresh);
+		return fresh;
+	}
+
+	/** Returns what a player in room i senses, encoded (see Senses.encode()). */
+	public Senses getSenses(int i) {
+		return getSenses(i, occupants.get(i) > 1);
+	}
+
+	/** Renders what a player senses in room i, with the given extra flags. */
+	protected Senses renderSenses(int i, int flags) {
+		int[] neighbors = getNeighbors(i);
+		for(int k=0; k<neighbors.length; ++k) {
+			neighbors[k] = ids[neighbors[k]];
+		}
+		long s = state.get(i);
+		if(gold(s) > 0) {
+			flags |= Senses.GOLD;
+		}
+		if(arrows(s) > 0) {
+			flags |= Senses.ARROWS;
+		}
+		return new Senses(ids[i], neighbors, near[i], flags);
+	}
+
+	/** Adds a player to room i.
+	 *
+	 * The count goes up before the player is added, and down after it is
+	 * removed, so that leaveRoom() never drops a set that a player is about
+	 * to be added to.
+	 */
+	public void enterRoom(int i, Mailbox c) {
+		occupants.incrementAndGet(i);
+		Set<Mailbox> p = players.get(i);
+		if(p == null) {
+			p = players.computeIfAbsent(i, new Function<Integer, Set<Mailbox>>() {
+				public Set<Mailbox> apply(Integer k) {
+					return ConcurrentHashMap.newKeySet();
+				}
+			});
+		}
+		p.add(c);
+	}
+
+	/** Removes a player from room i (if they are there). */
+	public void leaveRoom(int i, Mailbox c) {
+		Set<Mailbox> p = players.get(i);
+		if(p == null || !p.remove(c)) {
+			return;
+		}
+		if(occupants.decrementAndGet(i) == 0) {
+			// the room is empty, unless someone is entering it right now:
+			players.computeIfPresent(i, new BiFunction<Integer, Set<Mailbox>, Set<Mailbox>>() {
+				public Set<Mailbox> apply(Integer k, Set<Mailbox> p) {
+					return occupants.get(k) == 0 ? null : p;
+				}
+			});
+		}
+	}
+
+	/** Returns the number of players in room i. */
+	public int getOccupants(int i) {
+		return occupants.get(i);
+	}
+
+	/** Tells the players within the given number of tunnels of room i
+	 * (except one, who may be null) about something that happened there.
+	 *
+	 * This takes time proportional to the number of rooms and players near
+	 * room i, however many players there are in the rest of the cave.
+	 */
+	public void tell(int i, int hops, Mailbox except, String msg) {
+		int[] rooms = (hops == 0) ? new int[] { i } : within(i, hops);
+		for(int j : rooms) {
+			if(occupants.get(j) > 0) {
+				for(Mailbox m : getPlayers(j)) {
+					if(m != except) {
+						m.add(msg);
+					}
+				}
+			}
+		}
+	}
+
+	/** Returns the players in room i (a live view; don't modify it). */
+	public Set<Mailbox> getPlayers(int i) {
+		Set<Mailbox> p = players.get(i);
+		return p == null ? Collections.<Mailbox>emptySet() : p;
+	}
+}
@@ -0,0 +1,85 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.*;
+
+/** The caves registered with a CaveSystemServer, as of some moment.
+ *
+ * A directory never changes once it has been built; registering or dropping
+ * a cave builds a new one (see with() and without()), which the
+ * CaveSystemServer swaps in atomically.  Players being handed off read
+ * whichever directory is current without taking any lock, so a slow client
+ * never holds up anyone else.  Each directory indexes its caves by name, for
+ * CONNECT, and encodes the listing of caves shown to players just once.
+ */
+public class CaveDirectory {
+
+	/** The caves, in the order they registered. */
+	protected final List<CaveServerProxy> caves;
+
+	/** The caves, by name. */
+	protected final HashMap<String, CaveServerProxy> byName;
+
+	/** Listing of the caves, encoded as a NOTIFICATION. */
+	protected final EventBus.Event listing;
+
+	/** Constructor for an empty directory. */
+	public CaveDirectory() {
+		this(new ArrayList<CaveServerProxy>());
+	}
+
+	/** Constructor; the given list is kept, and must not be changed. */
+	protected CaveDirectory(ArrayList<CaveServerProxy> caves) {
+		this.caves = Collections.unmodifiableList(caves);
+		this.byName = new HashMap<String, CaveServerProxy>();
+		ArrayList<String> lines = new ArrayList<String>();
+		if(caves.isEmpty()) {
+			lines.add("There are no caves open right now.");
+		} else {
+			lines.add("Caves you can play in (\"connect <name>\", or just \"connect\" for the least busy):");
+			for(CaveServerProxy c : caves) {
+				byName.put(c.getName(), c);
+				lines.add("  " + c.getName());
+			}
+		}
+		this.listing = new EventBus.Event(0, null, lines.toArray(new String[lines.size()]));
+	}
+
+	/** Returns a directory that also holds the given cave, in place of any
+	 * cave with the same name.
+	 */
+	public CaveDirectory with(CaveServerProxy cave) {
+		ArrayList<CaveServerProxy> l = new ArrayList<CaveServerProxy>(caves.size() + 1);
+		for(CaveServerProxy c : caves) {
+			if(!c.getName().equals(cave.getName())) {
+				l.add(c);
+			}
+		}
+		l.add(cave);
+		return new CaveDirectory(l);
+	}
+
+	/** Returns a directory without the given cave (this one, if it isn't here). */
+	public CaveDirectory without(CaveServerProxy cave) {
+		if(!caves.contains(cave)) {
+			return this;
+		}
+		ArrayList<CaveServerProxy> l = new ArrayList<CaveServerProxy>(caves);
+		l.remove(cave);
+		return new CaveDirectory(l);
+	}
+
+	/** Returns the cave registered under the given name, or null. */
+	public CaveServerProxy get(String name) {
+		return byName.get(name);
+	}
+
+	/** Returns the caves, in the order they registered. */
+	public List<CaveServerProxy> getCaves() {
+		return caves;
+	}
+
+	/** Returns the listing of caves, encoded as a NOTIFICATION. */
+	public EventBus.Event getListing() {
+		return listing;
+	}
+}
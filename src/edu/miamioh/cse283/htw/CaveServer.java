@@ -1,422 +1,1159 @@
-package edu.miamioh.cse283.htw;
-
-import java.io.IOException;
-import java.net.*;
-import java.util.*;
-
-/**
- * The CaveServer class takes the following command-line parameters:
- * 
- * <Hostname of CaveSystemServer> <port number of CaveSystemServer> <port number
- * of this CaveServer>
- * 
- * E.g., "localhost 1234 2000"
- */
-public class CaveServer {
-
-	/** Port base for this cave server. */
-	protected int portBase;
-
-	/** Socket for accepting connections from players. */
-	protected ServerSocket clientSocket;
-
-	/** Proxy to the CaveSystemServer. */
-	protected CaveSystemServerProxy caveSystem;
-
-	/** Random number generator (used to pick caves for players). */
-	protected Random rng;
-
-	/** Rooms in this CaveServer. */
-	protected ArrayList<Room> rooms;
-
-	/** Constructor. */
-	public CaveServer(CaveSystemServerProxy caveSystem, int portBase) {
-		this.caveSystem = caveSystem;
-		this.portBase = portBase;
-		this.rng = new Random();
-
-		// construct the rooms:
-		rooms = new ArrayList<Room>();
-		int wumpusCheck = 0;
-		for (int i = 0; i < 20; ++i) {
-			int danger = Room.NONE;
-			int goldToAdd = 0;
-			int dangerCheck = rng.nextInt(101);
-			if (dangerCheck < 10 && wumpusCheck == 0) {
-				danger = Room.WUMPUS;
-				wumpusCheck = 1;
-			} else if (dangerCheck > 20 && dangerCheck < 30) {
-				danger = Room.BATS;
-			} else if (dangerCheck > 40 && dangerCheck < 50) {
-				danger = Room.HOLE;
-			} else if (dangerCheck > 50 && dangerCheck < 75) {
-				goldToAdd = 150;
-			}
-			rooms.add(new Room(danger, goldToAdd));
-		}
-		if (wumpusCheck == 0) {
-			while (wumpusCheck == 0) {
-				int wumpusRoom = rng.nextInt(20);
-				if (rooms.get(wumpusRoom).danger != Room.BATS
-						&& rooms.get(wumpusRoom).danger != Room.HOLE) {
-					rooms.get(wumpusRoom).danger = Room.WUMPUS;
-					wumpusCheck = 1;
-				}
-			}
-		}
-
-		// give a room a ladder
-		rooms.get(10).danger = Room.LADDER;
-
-		// connect them to each other:
-		for (int i = 0; i < 20; ++i) {
-			rooms.get(i).connectRoom(rooms.get((i + 1) % 20));
-			rooms.get(i).connectRoom(rooms.get((i + 2) % 20));
-		}
-
-		// and give them random ids:
-		HashSet<Integer> ids = new HashSet<Integer>();
-		for (int i = 0; i < 20; ++i) {
-			int r = rng.nextInt(100);
-			while (ids.contains(r)) {
-				r = rng.nextInt(100);
-			}
-			rooms.get(i).setIdNumber(r);
-		}
-	}
-
-	/** Returns the port number to use for accepting client connections. */
-	public int getClientPort() {
-		return portBase;
-	}
-
-	/** Returns an initial room for a client. */
-	public synchronized Room getInitialRoom() {
-		return rooms.get(rng.nextInt(rooms.size()));
-	}
-
-	/** This is the thread that handles a single client connection. */
-	public class ClientThread implements Runnable {
-		/**
-		 * This is our "client" (actually, a proxy to the network-connected
-		 * client).
-		 */
-		protected ClientProxy client;
-
-		/** Notification messages. */
-		protected ArrayList<String> notifications;
-
-		/** Whether this player is alive. */
-		protected boolean alive;
-
-		/** Number of client's arrows */
-		protected int gold;
-
-		/** Number of client's arrows */
-		protected int arrows;
-
-		/** Constructor. */
-		public ClientThread(ClientProxy client) {
-			this.client = client;
-			this.notifications = new ArrayList<String>();
-			this.alive = true;
-			this.gold = 0;
-			this.arrows = 3;
-		}
-
-		/**
-		 * Returns true if there are notifications that should be sent to this
-		 * client.
-		 */
-		public synchronized boolean hasNotifications() {
-			return !notifications.isEmpty();
-		}
-
-		/** Adds a message to the notifications. */
-		public synchronized void addNotification(String msg) {
-			notifications.add(msg);
-		}
-
-		/** Returns and resets notification messages. */
-		public synchronized ArrayList<String> getNotifications() {
-			ArrayList<String> t = notifications;
-			notifications = new ArrayList<String>();
-			return t;
-		}
-
-		/** Returns true if the player is alive. */
-		public synchronized boolean isAlive() {
-			return alive;
-		}
-
-		/** Kills this player. */
-		public synchronized void kill() {
-			alive = false;
-		}
-
-		/**
-		 * Play the game with this client.
-		 */
-		public void run() {
-			try {
-				// the first time a player connects, send a welcome message:
-				ArrayList<String> welcome = new ArrayList<String>();
-				welcome.add("Abandon all hope ye who enter here! This is Kyle's cave.");
-				client.sendNotifications(welcome);
-
-				// Put the player in an initial room and send them their initial
-				// sensory information:
-				Room r = getInitialRoom();
-				r.enterRoom(client);
-				client.sendSenses(r.getSensed());
-
-				// while the player is alive, listen for commands from the
-				// player
-				// and for activities elsewhere in the cave:
-				try {
-					while (true) {
-						// poll, waiting for input from client or other
-						// notifications:
-						while (!client.ready() && !hasNotifications()
-								&& isAlive()) {
-							try {
-								Thread.sleep(50);
-							} catch (InterruptedException ex) {
-							}
-						}
-
-						// if there are notifications, send them:
-						if (hasNotifications()) {
-							client.sendNotifications(getNotifications());
-						}
-
-						// if the player is dead, send the DIED message and
-						// break:
-						if (!isAlive()) {
-							client.died();
-							break;
-						}
-
-						// if the player did something, respond to it:
-						if (client.ready()) {
-							String line = client.nextLine().trim();
-
-							if (line.startsWith(Protocol.MOVE_ACTION)) {
-								String[] action = line.split(" ");
-								int newRoom = Integer.parseInt(action[2]);
-								if (r.getRoom(newRoom) != null) {
-									r.leaveRoom(client);
-									r = r.getRoom(newRoom);
-
-									ArrayList<String> entryMessage = new ArrayList<String>();
-									switch (r.danger) {
-									case Room.NONE:
-										r.enterRoom(client);
-										client.sendSenses(r.getSensed());
-										break;
-									case Room.WUMPUS:
-										entryMessage
-												.add("Kyle emerges from the shadows and slowly devours you!");
-										client.sendNotifications(entryMessage);
-										client.died();
-										break;
-									case Room.HOLE:
-										entryMessage
-												.add("You fell down into a pit and broke both of your legs.");
-										entryMessage
-												.add("You're trapped, son. RIP.");
-										client.sendNotifications(entryMessage);
-										client.died();
-										break;
-									case Room.BATS:
-										entryMessage
-												.add("Kyle's bat minions swoop down and carry you to another room!");
-										client.sendNotifications(entryMessage);
-										Random rng = new Random();
-										r = rooms.get(rng.nextInt(20));
-										r.enterRoom(client);
-										client.sendSenses(r.getSensed());
-										break;
-									case Room.LADDER:
-										r.enterRoom(client);
-										entryMessage.add("HOLY CRAP IS THAT THE LADDER?! YOU'RE GONNA' MAKE IT, BUDDY!");
-										client.sendNotifications(entryMessage);
-										client.sendSenses(r.getSensed());
-										break;
-									}
-								} else {
-									ArrayList<String> oops = new ArrayList<String>();
-									oops.add("You tried to enter an invalid room!");
-									client.sendNotifications(oops);
-								}
-								;
-							} else if (line.startsWith(Protocol.SHOOT_ACTION)) {
-								String[] action = line.split(" ");
-								int roomShoot = Integer.parseInt(action[2]);
-								ArrayList<String> notify = new ArrayList<String>();
-								if (arrows > 0) {
-									if(r.getRoom(roomShoot) != null)	{
-										arrows -= 1;
-										Room r1 = r.getRoom(roomShoot);
-										Room r2 = null;
-										Room r3 = null;
-										while (r2 == null) {
-											r2 = r1.getRoom(rng.nextInt(101));
-										}
-										while (r3 == null) {
-											r3 = r2.getRoom(rng.nextInt(101));
-										}
-										System.out.println(r1.getIdNumber() + " " + r2.getIdNumber() + " " + r3.getIdNumber());
-										notify.add("You fired an arrow! You now have " + arrows + " left.");
-										if(r1.danger == Room.WUMPUS)	{
-											notify.add("YOU KILLED KYLE! HOW COULD YOU?!");
-											notify.add("The smelly guy was in a room right next to you! Holy smokes!");
-											r1.danger = Room.NONE;
-											r1.gold += 500;
-										}
-										if(r2.danger == Room.WUMPUS)	{
-											notify.add("YOU KILLED KYLE! HOW COULD YOU?!");
-											notify.add("Kyle was killed 2 rooms away from you");
-											r2.danger = Room.NONE;
-											r2.gold += 500;
-										}
-										if(r3.danger == Room.WUMPUS)	{
-											notify.add("YOU KILLED KYLE! HOW COULD YOU?!");
-											notify.add("Kyle was killed 3 rooms away from you! Very impressive! Or was it just luck?");
-											r3.danger = Room.NONE;
-											r3.gold += 500;
-										}
-									} else	{
-										notify.add("You tried to fire an arrow into an invalid room!");
-										notify.add("Your arrow broke on the wall! :(");
-										arrows--;
-									}
-								} else {
-									notify.add("You don't have any arrows, silly!");
-								}
-								client.sendNotifications(notify);
-
-							} else if (line.startsWith(Protocol.PICKUP_ACTION)) {
-								ArrayList<String> notify = new ArrayList<String>();
-								if (r.gold > 0) {
-									gold += r.gold;
-									notify.add("You picked up " + r.gold
-											+ " gold!");
-									r.gold = 0;
-									notify.add("You now have " + gold
-											+ " gold!");
-								} else if (r.arrows > 0) {
-									arrows += r.arrows;
-									notify.add("You picked up " + r.arrows
-											+ " arrows!");
-									r.arrows = 0;
-									notify.add("You now have " + arrows
-											+ " arrows!");
-								} else {
-									notify.add("There is nothing to pick up! Quit trying to find things that aren't there!");
-								}
-								client.sendNotifications(notify);
-
-							} else if (line.startsWith(Protocol.CLIMB_ACTION)) {
-								ArrayList<String> notify = new ArrayList<String>();
-								if (r.danger == Room.LADDER) {
-									notify.add("YOU HAVE OVERCOME THE TRIALS AND TRIBULATIONS OF KYLE'S CAVE. THROUGH YOUR JOURNEY YOU AMASSED "
-											+ gold
-											+ " gold and "
-											+ arrows
-											+ " arrows. Which I guess is something. But still not a lot.");
-									client.sendNotifications(notify);
-									r.leaveRoom(client);
-									kill();
-								} else {
-									notify.add("LOL THERE ISN'T A LADDER IN HERE. But you just woke up Kyle, and now he's angry");
-									boolean hasChanged = false;
-									for (Room foo : rooms) {
-										if (foo.danger == Room.WUMPUS
-												&& !hasChanged) {
-											foo.danger = Room.NONE;
-											Room re = null;
-											while (re == null) {
-												re = r.getRoom(rng.nextInt(101));
-											}
-											re.danger = Room.WUMPUS;
-											hasChanged = true;
-										}
-									}
-									client.sendNotifications(notify);
-								}
-
-							} else if (line.startsWith(Protocol.QUIT)) {
-								r.gold += gold;
-								r.arrows += arrows;
-								gold = 0;
-								arrows = 0;
-								break;
-
-							} else {
-								ArrayList<String> notify = new ArrayList<String>();
-								notify.add("Something went horribly awfully wrong!");
-								client.sendNotifications(notify);
-							}
-						}
-					}
-				} finally {
-					// make sure the client leaves whichever room they're in,
-					// and close the client's socket:
-					r.leaveRoom(client);
-					client.close();
-				}
-			} catch (Exception ex) {
-				// If an exception is thrown, we can't fix it here -- Crash.
-				ex.printStackTrace();
-				System.exit(1);
-			}
-		}
-	}
-
-	/** Runs the CaveSystemServer. */
-	public void run() {
-		try {
-			// first thing we need to do is register this CaveServer
-			// with the CaveSystemServer:
-			clientSocket = new ServerSocket(getClientPort());
-			caveSystem.register(clientSocket);
-			System.out.println("CaveServer registered");
-
-			// then, loop forever accepting Client connections:
-			while (true) {
-				ClientProxy client = new ClientProxy(clientSocket.accept());
-				System.out.println("Client connected");
-				(new Thread(new ClientThread(client))).start();
-			}
-		} catch (Exception ex) {
-			ex.printStackTrace();
-			System.exit(1);
-		}
-	}
-
-	/** Main method (run the CaveServer). */
-	public static void main(String[] args) {
-		try {
-			InetAddress addr = InetAddress.getByName("localhost");
-			int cssPortBase = 1234;
-			int cavePortBase = 2000;
-
-			if (args.length > 0) {
-				addr = InetAddress.getByName(args[0]);
-				cssPortBase = Integer.parseInt(args[1]);
-				cavePortBase = Integer.parseInt(args[2]);
-			}
-
-			// first, we need our proxy object to the CaveSystemServer:
-			CaveSystemServerProxy caveSystem = new CaveSystemServerProxy(
-					new Socket(addr, cssPortBase + 1));
-
-			// now construct this cave server, and run it:
-			CaveServer cs = new CaveServer(caveSystem, cavePortBase);
-			cs.run();
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		}
-	}
-}
+package edu.miamioh.cse283.htw;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.random.RandomGenerator;
+
+/**
+ * The CaveServer class takes the following command-line parameters:
+ * 
+ * <Hostname of CaveSystemServer> <port number of CaveSystemServer> <port number
+ * of this CaveServer>
+ * 
+ * E.g., "localhost 1234 2000"
+ * 
+ * By default each client is served by its own thread.  Setting the system
+ * property htw.transport=nio instead serves all clients from a small set of
+ * Selector-driven I/O threads (htw.ioThreads per cave, default one per
+ * processor, divided among the caves).
+ * Setting htw.virtualThreads=true runs each client on virtual threads that
+ * block on reads, rather than polling (see HandlerExecutors).
+ * 
+ * One CaveServer process can host several independent caves (htw.shards,
+ * default 1), each with its own rooms, random numbers, players and threads,
+ * listening on consecutive ports starting at the given one.  Each registers
+ * with the CaveSystemServer separately, under the name htw.name followed
+ * by "-" and its number if there is more than one; by default, each is
+ * named for this host and its port, so that no two caves share a name.
+ * 
+ * Deaths, wumpus kills and climbs are broadcast to every player in the cave
+ * (see EventBus), which remembers the last htw.events of them (default 1024)
+ * for players who are slow to read them.  Smaller things (players moving,
+ * the wumpus waking, arrows flying past) are only told to players within
+ * htw.hearing tunnels of them (default 2; see Cave.tell()).
+ * 
+ * Every htw.loadInterval milliseconds (default 1000), each cave reports its
+ * number of players, action rate and action latency to the CaveSystemServer
+ * (see Protocol.LOAD), along with its capacity, htw.capacity (default 0, for
+ * no limit).  In between, it sends a HEARTBEAT every htw.heartbeat
+ * milliseconds (default 500).  If the CaveSystemServer doesn't answer within
+ * htw.timeout milliseconds (default 3000), the cave reconnects to it and
+ * registers again, retrying every htw.heartbeat milliseconds until it can.
+ * 
+ * When the CaveSystemServer asks (see Protocol.MIGRATE), players are moved
+ * to other caves along with their gold, arrows and score.  The state of a
+ * player who is on their way here is kept for htw.transferTtl milliseconds
+ * (default 30000), waiting for them to arrive.
+ * 
+ * The cave has htw.rooms rooms (default 20), each with htw.tunnels tunnels
+ * (default 4), and htw.wumpuses wumpuses (default 1).  Arrows fly through
+ * htw.arrowRange rooms (default 3; see Arrow).  The cave, and everything
+ * random that happens in it, is derived from the seed htw.seed (by default,
+ * a random seed, which is printed at startup; see RandomSource).
+ */
+public class CaveServer {
+
+	/** Port base for this cave server. */
+	protected int portBase;
+
+	/** Socket for accepting connections from players. */
+	protected ServerSocket clientSocket;
+
+	/** Proxy to the CaveSystemServer. */
+	protected CaveSystemServerProxy caveSystem;
+
+	/** Name under which this cave registers. */
+	protected String name;
+
+	/** Source of random numbers for the cave and its players. */
+	protected RandomSource random;
+
+	/** How long a polling client thread waits for input between checks. */
+	public static final long POLL_NANOS = 50000000L;
+
+	/** Stages of migrating a player to another cave (see ClientThread.migrate()). */
+	public static final int STAYING = 0;
+	public static final int LEAVING = 1;
+	public static final int WAITING = 2;
+	public static final int GOING = 3;
+
+	/** Rooms in this CaveServer. */
+	protected Cave cave;
+
+	/** Number of rooms an arrow flies through. */
+	protected int arrowRange;
+
+	/** Broadcasts events to every player in this cave. */
+	protected EventBus events;
+
+	/** Players hear things that happen within this many tunnels of them. */
+	protected int hearing;
+
+	/** Number of players in this cave. */
+	protected AtomicInteger players;
+
+	/** Number of actions handled. */
+	protected LongAdder actions;
+
+	/** Time taken to handle each action. */
+	protected LatencyHistogram actionLatency;
+
+	/** Players in this cave. */
+	protected Set<ClientThread> sessions;
+
+	/** Players migrating away from this cave, by token. */
+	protected ConcurrentHashMap<String, ClientThread> departures;
+
+	/** State of players migrating to this cave, by token. */
+	protected ConcurrentHashMap<String, PlayerState> arrivals;
+
+	/** Generates the tokens that migrating players carry. */
+	protected SecureRandom tokens;
+
+	/** When anything was last heard from the CaveSystemServer, from System.nanoTime(). */
+	protected volatile long lastHeard;
+
+	/** Runs client handlers, and anything an I/O thread shouldn't wait for. */
+	protected ExecutorService executor;
+
+	/** Constructor. */
+	public CaveServer(CaveSystemServerProxy caveSystem, int portBase) {
+		this(caveSystem, portBase, System.getProperty("htw.name", defaultName(portBase)),
+				new RandomSource(Long.getLong("htw.seed", new Random().nextLong())));
+	}
+
+	/** Constructor for a cave with the given name and source of random numbers. */
+	public CaveServer(CaveSystemServerProxy caveSystem, int portBase, String name, RandomSource random) {
+		this.caveSystem = caveSystem;
+		this.portBase = portBase;
+		this.name = name;
+		this.random = random;
+
+		// construct the rooms:
+		this.cave = new Cave(Integer.getInteger("htw.rooms", 20),
+				Integer.getInteger("htw.tunnels", 4),
+				Integer.getInteger("htw.wumpuses", 1), random.forCave());
+		this.arrowRange = Math.max(1, Integer.getInteger("htw.arrowRange", 3));
+		this.events = new EventBus(Integer.getInteger("htw.events", 1024));
+		this.hearing = Math.max(0, Integer.getInteger("htw.hearing", 2));
+		this.players = new AtomicInteger();
+		this.actions = new LongAdder();
+		this.actionLatency = new LatencyHistogram();
+		this.sessions = ConcurrentHashMap.newKeySet();
+		this.departures = new ConcurrentHashMap<String, ClientThread>();
+		this.arrivals = new ConcurrentHashMap<String, PlayerState>();
+		this.tokens = new SecureRandom();
+		this.executor = HandlerExecutors.create();
+	}
+
+	/** Returns the name of a cave on the given port when htw.name isn't set:
+	 * the name of this host, and the port.
+	 */
+	public static String defaultName(int port) {
+		try {
+			return InetAddress.getLocalHost().getHostName() + ":" + port;
+		} catch (UnknownHostException ex) {
+			return "localhost:" + port;
+		}
+	}
+
+	/** Returns the port number to use for accepting client connections. */
+	public int getClientPort() {
+		return portBase;
+	}
+
+	/** Returns an initial room for a client. */
+	public Room getInitialRoom(RandomGenerator rng) {
+		return cave.getRoom(rng.nextInt(cave.size()));
+	}
+
+	/** Returns a new token for a migrating player. */
+	protected String newToken() {
+		byte[] b = new byte[16];
+		tokens.nextBytes(b);
+		return HexFormat.of().formatHex(b);
+	}
+
+	/** This is the thread that handles a single client connection. */
+	public class ClientThread implements Runnable {
+		/**
+		 * This is our "client" (actually, a proxy to the network-connected
+		 * client).
+		 */
+		protected ClientProxy client;
+
+		/** Notification messages waiting to be sent to this client. */
+		protected Mailbox mailbox;
+
+		/** Reused to hold notifications while they are being sent. */
+		protected ArrayList<String> outbox;
+
+		/** Whether this player is alive. */
+		protected boolean alive;
+
+		/** Number of client's arrows */
+		protected int gold;
+
+		/** Number of client's arrows */
+		protected int arrows;
+
+		/** Client's score (500 for each wumpus killed). */
+		protected int score;
+
+		/** Whether the client has yet to send anything (RESUME is only
+		 * accepted as the first line).
+		 */
+		protected boolean fresh;
+
+		/** How far the player is in migrating to another cave (one of STAYING,
+		 * LEAVING, WAITING or GOING; see migrate()).
+		 */
+		protected volatile int migration;
+
+		/** Token carried by the player while migrating. */
+		protected String token;
+
+		/** Address and port of the cave the player is migrating to. */
+		protected String destination;
+
+		/** When the player's state was sent off, from System.nanoTime(). */
+		protected long departed;
+
+		/** Room the player is currently in. */
+		protected Room r;
+
+		/** Number of messages handled since PIPELINE, or -1 if not pipelined. */
+		protected int sequence;
+
+		/** Held while responding to the client (see runBlocking()). */
+		protected ReentrantLock sending;
+
+		/** Whether the client's connection has been released. */
+		protected boolean finished;
+
+		/** Random number generator for this session (see RandomSource). */
+		protected SplittableRandom rng;
+
+		/** Next event on the cave's EventBus to send to this client. */
+		protected volatile long cursor;
+
+		/** Constructor. */
+		public ClientThread(ClientProxy client) {
+			this.client = client;
+			this.rng = random.forSession();
+			this.mailbox = new Mailbox();
+			this.outbox = new ArrayList<String>();
+			this.alive = true;
+			this.fresh = true;
+			this.gold = 0;
+			this.arrows = 3;
+			this.sequence = -1;
+			this.sending = new ReentrantLock();
+		}
+
+		/**
+		 * Returns true if there are notifications that should be sent to this
+		 * client.
+		 */
+		public boolean hasNotifications() {
+			return !mailbox.isEmpty() || events.hasEvents(cursor)
+					|| migration == LEAVING || migration == GOING;
+		}
+
+		/** Adds a message to the notifications, and wakes this client. */
+		public void addNotification(String msg) {
+			mailbox.add(msg);
+		}
+
+		/** Asks this player to migrate to another cave; returns false if they
+		 * are already doing so, or are dead.
+		 */
+		public boolean leave() {
+			synchronized (this) {
+				if (migration != STAYING || !alive) {
+					return false;
+				}
+				migration = LEAVING;
+			}
+			mailbox.signal();
+			return true;
+		}
+
+		/** Sends this player on to the cave at the given address and port. */
+		public void go(String addr, String port) {
+			synchronized (this) {
+				if (migration != WAITING) {
+					return;
+				}
+				destination = addr + " " + port;
+				migration = GOING;
+			}
+			mailbox.signal();
+		}
+
+		/** Lets this player carry on here, if they were migrating. */
+		public void stay() {
+			synchronized (this) {
+				if (migration == STAYING || migration == GOING) {
+					return;
+				}
+				migration = STAYING;
+			}
+			addNotification("The ground stops shaking. You're still in Kyle's cave.");
+		}
+
+		/** Returns true if the player is migrating to another cave. */
+		public synchronized boolean isMigrating() {
+			return migration != STAYING;
+		}
+
+		/** Moves this player along in migrating to another cave; returns
+		 * false once they have been handed off to it.
+		 *
+		 * A player who has been asked to leave has their state sent to the
+		 * CaveSystemServer (which passes it to another cave), and can't act
+		 * until they either go there or are told to stay.
+		 */
+		protected boolean migrate() {
+			PlayerState state = null;
+			synchronized (this) {
+				if (migration == LEAVING) {
+					token = newToken();
+					departed = System.nanoTime();
+					migration = WAITING;
+					state = new PlayerState(gold, arrows, score);
+				} else if (migration == GOING) {
+					String[] to = destination.split(" ");
+					client.handoff(to[0], Integer.parseInt(to[1]), token);
+					return false;
+				}
+			}
+			if (state != null) {
+				departures.put(token, this);
+				ArrayList<String> notify = new ArrayList<String>();
+				notify.add("The ground shakes violently, and the walls start to move!");
+				client.sendNotifications(notify);
+
+				// writing to the CaveSystemServer may block, so the caller
+				// (perhaps a selector loop) doesn't do it:
+				final String leaving = token;
+				final PlayerState carried = state;
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							caveSystem.transfer(leaving, carried);
+						} catch (IOException ex) {
+							departures.remove(leaving);
+							stay();
+						}
+					}
+				});
+			}
+			return true;
+		}
+
+		/** Returns true if the player is alive. */
+		public synchronized boolean isAlive() {
+			return alive;
+		}
+
+		/** Kills this player. */
+		public void kill() {
+			synchronized (this) {
+				alive = false;
+			}
+			mailbox.signal();
+		}
+
+		/**
+		 * Sends the welcome message, and puts the player in an initial room.
+		 */
+		public void start() {
+			players.incrementAndGet();
+			sessions.add(this);
+
+			// the first time a player connects, send a welcome message:
+			ArrayList<String> welcome = new ArrayList<String>();
+			welcome.add("Abandon all hope ye who enter here! This is Kyle's cave.");
+			client.sendNotifications(welcome);
+			cursor = events.subscribe(mailbox);
+
+			// Put the player in an initial room and send them their initial
+			// sensory information:
+			r = getInitialRoom(rng);
+			r.enterRoom(mailbox);
+			client.sendSenses(r.getSenses());
+		}
+
+		/**
+		 * Sends any pending notifications to the client.
+		 *
+		 * Returns false if the player is dead, in which case the DIED message
+		 * has been sent and the client should be released.
+		 */
+		public boolean deliver() {
+			// if the player has been moved to another cave, we're done:
+			if (!migrate()) {
+				return false;
+			}
+
+			// if there are notifications, send them:
+			if (mailbox.drainTo(outbox) > 0) {
+				client.sendNotifications(outbox);
+				outbox.clear();
+			}
+			cursor = events.deliver(cursor, this, client);
+
+			// if the player is dead, send the DIED message:
+			if (!isAlive()) {
+				client.died();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Responds to a single line sent by the client.
+		 *
+		 * Responses are only written to the client's buffer; callers respond
+		 * to every line that is ready, and then flush them all at once.
+		 * Returns false if the client has quit.
+		 */
+		public boolean handle(String line) {
+			long begin = System.nanoTime();
+			boolean open = respond(line);
+			actionLatency.record(System.nanoTime() - begin);
+			actions.increment();
+			return open;
+		}
+
+		/** Responds to a single line (see handle()). */
+		protected boolean respond(String line) {
+			boolean first = fresh;
+			fresh = false;
+			if (line.startsWith("ACTION") && isMigrating()) {
+				ArrayList<String> notify = new ArrayList<String>();
+				notify.add("The ground is shaking too hard to do anything! Hold on!");
+				client.sendNotifications(notify);
+
+			} else if (line.startsWith(Protocol.MOVE_ACTION)) {
+				String[] action = line.split(" ");
+				int newRoom = Integer.parseInt(action[2]);
+				if (r.getRoom(newRoom) != null) {
+					r.leaveRoom(mailbox);
+					r = r.getRoom(newRoom);
+
+					ArrayList<String> entryMessage = new ArrayList<String>();
+					switch (r.getDanger()) {
+					case Room.NONE:
+						r.enterRoom(mailbox);
+						client.sendSenses(r.getSenses());
+						break;
+					case Room.WUMPUS:
+						entryMessage
+								.add("Kyle emerges from the shadows and slowly devours you!");
+						client.sendNotifications(entryMessage);
+						events.publish(this, "A scream echoes through the cave. Kyle has eaten someone!");
+						kill();
+						break;
+					case Room.HOLE:
+						entryMessage
+								.add("You fell down into a pit and broke both of your legs.");
+						entryMessage
+								.add("You're trapped, son. RIP.");
+						client.sendNotifications(entryMessage);
+						events.publish(this, "You hear a distant thud. Someone fell into a pit.");
+						kill();
+						break;
+					case Room.BATS:
+						entryMessage
+								.add("Kyle's bat minions swoop down and carry you to another room!");
+						client.sendNotifications(entryMessage);
+						r = cave.getRoom(rng.nextInt(cave.size()));
+						r.enterRoom(mailbox);
+						client.sendSenses(r.getSenses());
+						break;
+					case Room.LADDER:
+						r.enterRoom(mailbox);
+						entryMessage.add("HOLY CRAP IS THAT THE LADDER?! YOU'RE GONNA' MAKE IT, BUDDY!");
+						client.sendNotifications(entryMessage);
+						client.sendSenses(r.getSenses());
+						break;
+					}
+					if (isAlive()) {
+						cave.tell(r.getIndex(), hearing, mailbox, "You hear someone moving around nearby.");
+					}
+				} else {
+					ArrayList<String> oops = new ArrayList<String>();
+					oops.add("You tried to enter an invalid room!");
+					client.sendNotifications(oops);
+				}
+			} else if (line.startsWith(Protocol.SHOOT_ACTION)) {
+				String[] action = line.split(" ");
+				int[] path = new int[action.length - 2];
+				for (int i = 0; i < path.length; ++i) {
+					path[i] = Integer.parseInt(action[i + 2]);
+				}
+				ArrayList<String> notify = new ArrayList<String>();
+				if (arrows > 0) {
+					arrows -= 1;
+					Arrow arrow = Arrow.fly(cave, r.getIndex(), path, arrowRange, rng);
+					if (arrow == null) {
+						notify.add("You tried to fire an arrow into an invalid room!");
+						notify.add("Your arrow broke on the wall! :(");
+					} else {
+						notify.add("You fired an arrow! You now have " + arrows + " left.");
+						for (int i = 0; i < arrow.getHops(); ++i) {
+							cave.tell(arrow.getRooms()[i], 0, mailbox, "An arrow whizzes past you!");
+						}
+						if (arrow.isHit() && arrow.getHit(cave).killWumpus(500)) {
+							score += 500;
+							notify.add("YOU KILLED KYLE! HOW COULD YOU?!");
+							if (arrow.getHops() == 1) {
+								notify.add("The smelly guy was in a room right next to you! Holy smokes!");
+							} else if (arrow.getHops() == 2) {
+								notify.add("Kyle was killed 2 rooms away from you");
+							} else {
+								notify.add("Kyle was killed " + arrow.getHops() + " rooms away from you! Very impressive! Or was it just luck?");
+							}
+							events.publish(this, "A horrible howl fills the cave. Someone has killed Kyle!");
+						}
+					}
+				} else {
+					notify.add("You don't have any arrows, silly!");
+				}
+				client.sendNotifications(notify);
+
+			} else if (line.startsWith(Protocol.PICKUP_ACTION)) {
+				ArrayList<String> notify = new ArrayList<String>();
+				int found;
+				if ((found = r.takeGold()) > 0) {
+					gold += found;
+					notify.add("You picked up " + found
+							+ " gold!");
+					notify.add("You now have " + gold
+							+ " gold!");
+				} else if ((found = r.takeArrows()) > 0) {
+					arrows += found;
+					notify.add("You picked up " + found
+							+ " arrows!");
+					notify.add("You now have " + arrows
+							+ " arrows!");
+				} else {
+					notify.add("There is nothing to pick up! Quit trying to find things that aren't there!");
+				}
+				client.sendNotifications(notify);
+
+			} else if (line.startsWith(Protocol.CLIMB_ACTION)) {
+				ArrayList<String> notify = new ArrayList<String>();
+				if (r.getDanger() == Room.LADDER) {
+					notify.add("YOU HAVE OVERCOME THE TRIALS AND TRIBULATIONS OF KYLE'S CAVE. THROUGH YOUR JOURNEY YOU AMASSED "
+							+ gold
+							+ " gold and "
+							+ arrows
+							+ " arrows. Which I guess is something. But still not a lot.");
+					notify.add("Your score is " + (score + gold) + ".");
+					client.sendNotifications(notify);
+					events.publish(this, "Someone climbed out of the cave with " + gold + " gold!");
+					r.leaveRoom(mailbox);
+					kill();
+				} else {
+					notify.add("LOL THERE ISN'T A LADDER IN HERE. But you just woke up Kyle, and now he's angry");
+					int wumpus = cave.locateRandom(Room.WUMPUS, rng);
+					if (wumpus >= 0) {
+						// the wumpus comes next to the player, unless something is in the way:
+						int to = r.getRandomRoom(rng).getIndex();
+						if (cave.moveWumpus(wumpus, to)) {
+							cave.tell(to, hearing, mailbox, "You hear Kyle stirring nearby!");
+						}
+					}
+					client.sendNotifications(notify);
+				}
+
+			} else if (line.startsWith(Protocol.RESUME)) {
+				ArrayList<String> notify = new ArrayList<String>();
+				PlayerState state = first
+						? arrivals.remove(line.substring(Protocol.RESUME.length()).trim())
+						: null;
+				if (!first) {
+					notify.add("You can only bring your things with you as you arrive!");
+				} else if (state != null && !state.isExpired()) {
+					gold = state.getGold();
+					arrows = state.getArrows();
+					score = state.getScore();
+					notify.add("You tumble out of a crack in the wall, still carrying " + gold
+							+ " gold and " + arrows + " arrows.");
+				} else {
+					notify.add("You tumble out of a crack in the wall, but your things didn't make it.");
+				}
+				client.sendNotifications(notify);
+				client.sendSenses(r.getSenses());
+
+			} else if (line.startsWith(Protocol.BINARY)) {
+				client.useBinary();
+				client.sendSenses(r.getSenses());
+
+			} else if (line.startsWith(Protocol.PIPELINE)) {
+				sequence = 0;
+				client.sendSequence(sequence);
+				return true;
+
+			} else if (line.startsWith(Protocol.QUIT)) {
+				r.drop(gold, arrows);
+				gold = 0;
+				arrows = 0;
+				return false;
+
+			} else {
+				ArrayList<String> notify = new ArrayList<String>();
+				notify.add("Something went horribly awfully wrong!");
+				client.sendNotifications(notify);
+			}
+			if (sequence >= 0) {
+				client.sendSequence(++sequence);
+			}
+			return true;
+		}
+
+		/**
+		 * Makes sure the client leaves whichever room they're in, and closes
+		 * the client's socket.
+		 */
+		public void finish() {
+			String departing;
+			synchronized (this) {
+				if (finished) {
+					return;
+				}
+				finished = true;
+				departing = token;
+			}
+			players.decrementAndGet();
+			sessions.remove(this);
+			if (departing != null) {
+				departures.remove(departing, this);
+			}
+			mailbox.signal();
+			events.unsubscribe(mailbox);
+			if (r != null) {
+				r.leaveRoom(mailbox);
+			}
+			try {
+				client.close();
+			} catch (IOException ex) {
+			}
+		}
+
+		/**
+		 * Play the game with this client, blocking on reads instead of polling.
+		 *
+		 * Notifications are sent by a separate task on the given executor,
+		 * which sleeps on the mailbox until addNotification() or kill() wakes
+		 * it.  Both tasks hold the sending lock while writing to the client.
+		 */
+		public void runBlocking(Executor executor) {
+			try {
+				sending.lock();
+				try {
+					start();
+					client.flush();
+				} finally {
+					sending.unlock();
+				}
+				executor.execute(new Runnable() {
+					public void run() {
+						deliverUntilFinished();
+					}
+				});
+
+				String line;
+				while ((line = client.nextLine()) != null) {
+					sending.lock();
+					try {
+						boolean open = handle(line.trim()) && deliver();
+						while (open && client.ready()) {
+							open = handle(client.nextLine().trim()) && deliver();
+						}
+						client.flush();
+						if (!open) {
+							break;
+						}
+					} finally {
+						sending.unlock();
+					}
+				}
+			} catch (IOException ex) {
+				// the client dropped the connection (or was closed after dying).
+			} finally {
+				finish();
+			}
+		}
+
+		/** Sends notifications as they arrive, until this client is released. */
+		protected void deliverUntilFinished() {
+			while (true) {
+				while (!hasNotifications() && isAlive() && !isFinished()) {
+					mailbox.await(0);
+				}
+				if (isFinished()) {
+					return;
+				}
+				sending.lock();
+				try {
+					boolean open = deliver();
+					client.flush();
+					if (!open) {
+						finish();
+						return;
+					}
+				} catch (IOException ex) {
+					finish();
+					return;
+				} finally {
+					sending.unlock();
+				}
+			}
+		}
+
+		/** Returns true if the client's connection has been released. */
+		public synchronized boolean isFinished() {
+			return finished;
+		}
+
+		/**
+		 * Play the game with this client.
+		 */
+		public void run() {
+			try {
+				// while the player is alive, listen for commands from the
+				// player
+				// and for activities elsewhere in the cave:
+				try {
+					start();
+					client.flush();
+					while (true) {
+						// poll, waiting for input from client; notifications
+						// wake us up immediately.  ready() never notices a
+						// client that hangs up, so check for that in between:
+						while (!client.ready() && !hasNotifications()
+								&& isAlive()) {
+							mailbox.await(POLL_NANOS);
+							if (!client.ready() && client.hungUp(1)) {
+								throw new EOFException();
+							}
+						}
+
+						// send notifications, or the DIED message; and if the
+						// player did something, respond to it:
+						boolean open = deliver();
+						while (open && client.ready()) {
+							open = handle(client.nextLine().trim()) && deliver();
+						}
+
+						// everything we had to say goes out in one write:
+						client.flush();
+						if (!open) {
+							break;
+						}
+					}
+				} catch (IOException ex) {
+					// the client dropped the connection.
+				} finally {
+					finish();
+				}
+			} catch (Exception ex) {
+				// If an exception is thrown, we can't fix it here -- Crash.
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * This is an I/O thread that serves many clients from a single Selector.
+	 *
+	 * Clients are handed to it by the accepting thread via register(); other
+	 * threads that queue notifications for one of its clients call wakeup(),
+	 * so that the notification is sent without waiting for a poll interval.
+	 */
+	public class SelectorLoop implements Runnable {
+		/** Selector for all of this loop's clients. */
+		protected Selector selector;
+
+		/** Newly accepted channels waiting to be registered. */
+		protected ConcurrentLinkedQueue<SocketChannel> accepted;
+
+		/** Clients that have notifications waiting to be sent. */
+		protected ConcurrentLinkedQueue<ClientThread> notified;
+
+		/** Released clients whose channels are still sending their last
+		 * output (see ClientProxy.close()).
+		 */
+		protected ArrayList<ClientThread> lingering;
+
+		/** Constructor. */
+		public SelectorLoop() throws IOException {
+			this.selector = Selector.open();
+			this.accepted = new ConcurrentLinkedQueue<SocketChannel>();
+			this.notified = new ConcurrentLinkedQueue<ClientThread>();
+			this.lingering = new ArrayList<ClientThread>();
+		}
+
+		/** Hands a newly accepted channel to this loop. */
+		public void register(SocketChannel channel) {
+			accepted.add(channel);
+			selector.wakeup();
+		}
+
+		/** Asks this loop to deliver notifications to the given client.
+		 *
+		 * This is the wakeup callback for the client's mailbox.
+		 */
+		public void wakeup(ClientThread t) {
+			notified.add(t);
+			selector.wakeup();
+		}
+
+		/** Closes a client whose channel failed or whose game is over; if it
+		 * still has output queued, the channel lingers until that is sent.
+		 */
+		protected void release(ClientThread t) {
+			t.finish();
+			if (!t.client.isLingering()) {
+				t.client.key.cancel();
+			} else if (!lingering.contains(t)) {
+				lingering.add(t);
+			}
+		}
+
+		/** Serve clients. */
+		public void run() {
+			try {
+				while (true) {
+					// lingering channels are closed after a while, even if
+					// they never become writable:
+					selector.select(lingering.isEmpty() ? 0 : 100);
+
+					// start games for any new clients:
+					SocketChannel channel;
+					while ((channel = accepted.poll()) != null) {
+						final ClientThread t = new ClientThread(new ClientProxy(channel));
+						t.mailbox.setWakeup(new Runnable() {
+							public void run() {
+								wakeup(t);
+							}
+						});
+						t.client.key = channel.register(selector,
+								SelectionKey.OP_READ, t);
+						try {
+							t.start();
+							boolean open = t.deliver();
+							t.client.flush();
+							if (!open) {
+								release(t);
+							}
+						} catch (IOException ex) {
+							release(t);
+						}
+					}
+
+					// deliver notifications queued by other threads:
+					ClientThread n;
+					while ((n = notified.poll()) != null) {
+						if (!n.client.key.isValid() || n.isFinished()) {
+							continue;
+						}
+						try {
+							boolean open = n.deliver();
+							n.client.flush();
+							if (!open) {
+								release(n);
+							}
+						} catch (IOException ex) {
+							release(n);
+						}
+					}
+
+					// and respond to whatever the clients sent us:
+					for (SelectionKey key : selector.selectedKeys()) {
+						ClientThread t = (ClientThread) key.attachment();
+						try {
+							if (key.isValid() && key.isWritable()) {
+								t.client.flush();
+							}
+							if (key.isValid() && key.isReadable()) {
+								boolean open = t.client.readAvailable();
+								if (open) {
+									// respond to every complete line, then send
+									// all of the responses together:
+									open = t.deliver();
+									while (open && t.client.ready()) {
+										open = t.handle(t.client.nextLine().trim())
+												&& t.deliver();
+									}
+									t.client.flush();
+								}
+								if (!open) {
+									release(t);
+								}
+							}
+						} catch (IOException ex) {
+							release(t);
+						}
+					}
+					selector.selectedKeys().clear();
+
+					for (Iterator<ClientThread> i = lingering.iterator(); i.hasNext();) {
+						if (i.next().client.closeIfDone()) {
+							i.remove();
+						}
+					}
+				}
+			} catch (Exception ex) {
+				// If an exception is thrown, we can't fix it here -- Crash.
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		}
+	}
+
+	/** Registers this cave with the CaveSystemServer, and starts listening
+	 * to it.
+	 */
+	protected void register() throws IOException {
+		caveSystem.register(clientSocket, name);
+		lastHeard = System.nanoTime();
+		(new Thread(new CaveSystemListener(), "htw-css-" + name)).start();
+	}
+
+	/** Moves up to count players (or all of them, if count is 0) to other caves. */
+	protected void migrate(int count) {
+		int n = 0;
+		for (ClientThread t : sessions) {
+			if ((count == 0 || n < count) && t.leave()) {
+				++n;
+			}
+		}
+		System.out.println("CaveServer " + name + " migrating " + n + " players");
+	}
+
+	/** Lets every player who is waiting to migrate stay, if they have been
+	 * waiting longer than timeout milliseconds (or at all, if timeout is 0).
+	 */
+	protected void cancelDepartures(long timeout) {
+		long now = System.nanoTime();
+		for (Iterator<ClientThread> i = departures.values().iterator(); i.hasNext();) {
+			ClientThread t = i.next();
+			if (now - t.departed >= timeout * 1000000L) {
+				i.remove();
+				t.stay();
+			}
+		}
+	}
+
+	/** Handles messages from the CaveSystemServer, until the connection to it
+	 * fails.
+	 */
+	public class CaveSystemListener implements Runnable {
+		public void run() {
+			long transferTtl = Long.getLong("htw.transferTtl", 30000);
+			try {
+				String line;
+				while ((line = caveSystem.nextLine()) != null) {
+					lastHeard = System.nanoTime();
+					String[] words = line.split(" ");
+					if (words[0].equals(Protocol.MIGRATE)) {
+						migrate(words.length > 1 ? Integer.parseInt(words[1]) : 0);
+
+					} else if (line.startsWith(Protocol.TRANSFER)) {
+						// a player is on their way here; keep their state for them:
+						PlayerState state = PlayerState.decode(words, 2);
+						state.expireAfter(transferTtl);
+						for (Iterator<PlayerState> i = arrivals.values().iterator(); i.hasNext();) {
+							if (i.next().isExpired()) {
+								i.remove();
+							}
+						}
+						arrivals.put(words[1], state);
+						caveSystem.migrated(words[1]);
+
+					} else if (line.startsWith(Protocol.MIGRATED)) {
+						ClientThread t = departures.remove(words[1]);
+						if (t != null && words.length > 3) {
+							t.go(words[2], words[3]);
+						} else if (t != null) {
+							t.stay();
+						}
+					}
+				}
+			} catch (IOException ex) {
+				// the LoadReporter notices the silence, and reconnects.
+			}
+		}
+	}
+
+	/**
+	 * Keeps this cave registered with the CaveSystemServer: reports its load
+	 * and sends heartbeats periodically, and registers again whenever the
+	 * CaveSystemServer stops answering.
+	 */
+	public class LoadReporter implements Runnable {
+		public void run() {
+			long heartbeat = Long.getLong("htw.heartbeat", 500);
+			long interval = Long.getLong("htw.loadInterval", 1000) * 1000000L;
+			long timeout = Integer.getInteger("htw.timeout", 3000);
+			int capacity = Integer.getInteger("htw.capacity", 0);
+			long lastTime = System.nanoTime();
+			long lastActions = 0;
+			boolean connected = true;
+			try {
+				while (true) {
+					Thread.sleep(heartbeat);
+					try {
+						if (!connected) {
+							caveSystem.reconnect();
+							register();
+							System.out.println("CaveServer " + name + " registered again");
+							connected = true;
+						}
+						long now = System.nanoTime();
+						if (now - lastHeard > timeout * 1000000L) {
+							throw new SocketTimeoutException("no heartbeat for " + timeout + "ms");
+						}
+						// players who have waited too long for a destination stay here:
+						cancelDepartures(timeout);
+						if (now - lastTime >= interval) {
+							long n = actions.sum();
+							long rate = (long) ((n - lastActions) / ((now - lastTime) / 1e9));
+							long p99 = actionLatency.reset().percentile(0.99) / 1000;
+							caveSystem.load(players.get(), rate, p99, capacity);
+							lastTime = now;
+							lastActions = n;
+						} else {
+							caveSystem.heartbeat();
+						}
+					} catch (IOException ex) {
+						if (connected) {
+							System.out.println("CaveServer " + name + " lost the CaveSystemServer: " + ex.getMessage());
+							cancelDepartures(0);
+						}
+						connected = false;
+					}
+				}
+			} catch (InterruptedException ex) {
+			}
+		}
+	}
+
+	/** Accepts client connections, and spreads them across the SelectorLoops. */
+	protected void runSelectorLoops() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(getClientPort()));
+		clientSocket = server.socket();
+		register();
+		System.out.println("CaveServer " + name + " registered");
+		(new Thread(new LoadReporter(), "htw-load-" + name)).start();
+
+		int shards = Math.max(1, Integer.getInteger("htw.shards", 1));
+		int n = Integer.getInteger("htw.ioThreads", Math.max(1, Runtime
+				.getRuntime().availableProcessors() / shards));
+		SelectorLoop[] loops = new SelectorLoop[n];
+		for (int i = 0; i < n; ++i) {
+			loops[i] = new SelectorLoop();
+			(new Thread(loops[i], "htw-io-" + name + "-" + i)).start();
+		}
+
+		// then, loop forever accepting Client connections:
+		for (int i = 0;; i = (i + 1) % n) {
+			SocketChannel channel = server.accept();
+			System.out.println("Client connected");
+			loops[i].register(channel);
+		}
+	}
+
+	/** Runs the CaveServer. */
+	public void run() {
+		try {
+			if ("nio".equals(System.getProperty("htw.transport"))) {
+				runSelectorLoops();
+				return;
+			}
+
+			// first thing we need to do is register this CaveServer
+			// with the CaveSystemServer:
+			clientSocket = new ServerSocket(getClientPort());
+			register();
+			System.out.println("CaveServer " + name + " registered");
+			(new Thread(new LoadReporter(), "htw-load-" + name)).start();
+
+			// then, loop forever accepting Client connections:
+			while (true) {
+				ClientProxy client = new ClientProxy(clientSocket.accept());
+				System.out.println("Client connected");
+				final ClientThread t = new ClientThread(client);
+				if (HandlerExecutors.useVirtualThreads()) {
+					executor.execute(new Runnable() {
+						public void run() {
+							t.runBlocking(executor);
+						}
+					});
+				} else {
+					executor.execute(t);
+				}
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/** Main method (run the CaveServer). */
+	public static void main(String[] args) {
+		try {
+			InetAddress addr = InetAddress.getByName("localhost");
+			int cssPortBase = 1234;
+			int cavePortBase = 2000;
+
+			if (args.length > 0) {
+				addr = InetAddress.getByName(args[0]);
+				cssPortBase = Integer.parseInt(args[1]);
+				cavePortBase = Integer.parseInt(args[2]);
+			}
+
+			int shards = Math.max(1, Integer.getInteger("htw.shards", 1));
+			String name = System.getProperty("htw.name");
+			RandomSource random = new RandomSource(Long.getLong("htw.seed", new Random().nextLong()));
+			System.out.println("CaveServer seed " + random.getSeed());
+
+			for (int i = 0; i < shards; ++i) {
+				// each cave needs its own proxy object to the CaveSystemServer:
+				CaveSystemServerProxy caveSystem = new CaveSystemServerProxy(
+						addr, cssPortBase + 1);
+
+				// now construct this cave server, and run it:
+				final CaveServer cs = new CaveServer(caveSystem, cavePortBase + i,
+						name == null ? defaultName(cavePortBase + i)
+								: shards == 1 ? name : name + "-" + i,
+						random.forShard(i));
+				(new Thread(new Runnable() {
+					public void run() {
+						cs.run();
+					}
+				}, "htw-cave-" + i)).start();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+}
@@ -2,17 +2,25 @@ package edu.miamioh.cse283.htw;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /** Proxy cave object. 
  * 
+ * If binary framing has been negotiated with the CaveServer (see binary()),
+ * frames are decoded back into the same lines that a text CaveServer would
+ * have sent, so nextLine() works the same either way.  The structured form
+ * of the most recent SENSES message is also available from getSenses().
  */
 public class CaveServerProxy {
 	/** This socket is connected to a cave server. */
 	protected Socket s;
 
 	/** Used to read from the cave's socket. */
-	protected BufferedReader in;
+	protected DataInputStream in;
 
 	/** Used to write to the cave's socket. */
 	protected PrintWriter out;
@@ -22,13 +30,61 @@ public class CaveServerProxy {
 
 	/** Remove client port. */
 	protected int clientPort;
+
+	/** Name under which the CaveServer registered. */
+	protected String name;
+
+	/** Number of players in the cave, as of the last LOAD. */
+	protected volatile int players;
+
+	/** Actions per second, as of the last LOAD. */
+	protected volatile long rate;
+
+	/** 99th percentile action time in microseconds, as of the last LOAD. */
+	protected volatile long p99;
+
+	/** Most players the cave will take (0 for no limit), as of the last LOAD. */
+	protected volatile int capacity;
+
+	/** Players handed off to the cave since the last LOAD. */
+	protected AtomicInteger handedOff;
+
+	/** HANDOFF message to this cave, encoded in advance (see encodeHandoff()). */
+	protected volatile byte[] handoff;
+
+	/** Address of this cave, as given in the HANDOFF message. */
+	protected volatile String address;
+
+	/** Whether players are being moved off this cave (see Protocol.MIGRATE). */
+	protected volatile boolean draining;
+
+	/** When handoff was encoded, from System.nanoTime(). */
+	protected volatile long handoffTime;
+
+	/** Whether the cave's host name is being looked up (see resolveHandoff()). */
+	protected AtomicBoolean resolving;
+
+	/** Whether we have asked the CaveServer for binary framing. */
+	protected boolean binaryRequested;
+
+	/** Whether the CaveServer is sending binary frames. */
+	protected boolean binary;
+
+	/** Lines decoded from frames that have not yet been returned. */
+	protected LinkedList<String> decoded;
+
+	/** Most recent senses received from the CaveServer (binary framing only). */
+	protected Senses senses;
 	
 	/** Constructor. */
 	public CaveServerProxy(Socket s) throws IOException {
 		this.s = s;
 		try {
 			this.out = new PrintWriter(s.getOutputStream(), true);                   
-			this.in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			this.in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			this.decoded = new LinkedList<String>();
+			this.handedOff = new AtomicInteger();
+			this.resolving = new AtomicBoolean();
 		} catch(IOException ex) {
 			if(s != null) {
 				try { s.close(); } catch(Exception ex2) { }
@@ -57,6 +113,113 @@ public class CaveServerProxy {
 		return clientPort;
 	}	
 	
+	/** Encodes the HANDOFF message that sends players to this cave, giving
+	 * its address as a number, or if resolveName is true, as the host name it
+	 * currently resolves to.
+	 */
+	public void encodeHandoff(boolean resolveName) throws IOException {
+		String host = resolveName 
+				// a fresh InetAddress, so that the name is looked up again:
+				? InetAddress.getByAddress(clientAddr.getAddress()).getHostName()
+				: clientAddr.getHostAddress();
+		handoff = (Protocol.HANDOFF + " " + host + " " + clientPort + System.lineSeparator()).getBytes("UTF-8");
+		address = host;
+		handoffTime = System.nanoTime();
+	}
+
+	/** Looks up the host name of this cave on the given executor, and then
+	 * encodes the HANDOFF message with it; until then, the message already
+	 * encoded is used.  Does nothing if a lookup is already under way.
+	 */
+	public void resolveHandoff(Executor executor) {
+		if(!resolving.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					encodeHandoff(true);
+				} catch(IOException ex) {
+					// keep the message we have, and try again later:
+					handoffTime = System.nanoTime();
+				} finally {
+					resolving.set(false);
+				}
+			}
+		});
+	}
+
+	/** Returns the address of this cave, as given in the HANDOFF message. */
+	public String getAddress() {
+		return address;
+	}
+
+	/** Returns the HANDOFF message to this cave, as encoded by encodeHandoff(). */
+	public byte[] getHandoff() {
+		return handoff;
+	}
+
+	/** Returns how long ago the HANDOFF message was encoded, in milliseconds. */
+	public long getHandoffAge() {
+		return (System.nanoTime() - handoffTime) / 1000000;
+	}
+
+	/** Records a LOAD message from the CaveServer. */
+	public void setLoad(int players, long rate, long p99, int capacity) {
+		this.players = players;
+		this.rate = rate;
+		this.p99 = p99;
+		this.capacity = capacity;
+		handedOff.set(0);
+	}
+
+	/** Returns the number of players in the cave, counting those handed off
+	 * to it since it last reported.
+	 */
+	public int getLoad() {
+		return players + handedOff.get();
+	}
+
+	/** Returns the 99th percentile action time in microseconds. */
+	public long getLatency() {
+		return p99;
+	}
+
+	/** Returns true if the cave has room for another player, and isn't so
+	 * slow (a 99th percentile action time over maxLatency microseconds)
+	 * that it shouldn't be given any more.
+	 */
+	public boolean hasRoom(long maxLatency) {
+		return (capacity == 0 || getLoad() < capacity) && p99 <= maxLatency && !draining;
+	}
+
+	/** Sets whether players are being moved off this cave (no players are
+	 * handed off to a cave that is draining).
+	 */
+	public void setDraining(boolean draining) {
+		this.draining = draining;
+	}
+
+	/** Returns true if players are being moved off this cave. */
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/** Counts a player handed off to the cave. */
+	public void handedOff() {
+		handedOff.incrementAndGet();
+	}
+
+	/** Sets the name under which the CaveServer registered. */
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	/** Returns the name under which the CaveServer registered. */
+	public String getName() {
+		return name;
+	}
+	
 	/** Close this connection to the CaveServer. */
 	public void close() throws IOException {
 		s.close();
@@ -68,12 +231,51 @@ public class CaveServerProxy {
 		return new CaveServerProxy(new Socket(addr, port));
 	}
 	
+	/** Ask the CaveServer to move count of its players elsewhere (all of
+	 * them, if count is 0).
+	 */
+	public void migrate(int count) {
+		out.println(count > 0 ? Protocol.MIGRATE + " " + count : Protocol.MIGRATE);
+	}
+
+	/** Forward a migrating player's state to the CaveServer they're going to. */
+	public void transfer(String token, PlayerState state) {
+		out.println(Protocol.TRANSFER + " " + token + " " + state.encode());
+	}
+
+	/** Tell the CaveServer that a migrating player is expected at the given
+	 * cave, or, if it is null, that the player has nowhere to go.
+	 */
+	public void migrated(String token, CaveServerProxy to) {
+		out.println(to == null ? Protocol.MIGRATED + " " + token
+				: Protocol.MIGRATED + " " + token + " " + to.getAddress() + " " + to.getClientPort());
+	}
+
+	/** Send a resume message to the CaveServer, with the token given in a
+	 * HANDOFF.
+	 */
+	public void resume(String token) throws IOException {
+		out.println(Protocol.RESUME + " " + token);
+	}
+
+	/** Answer a HEARTBEAT or LOAD from the CaveServer. */
+	public void heartbeat() throws IOException {
+		out.println(Protocol.HEARTBEAT);
+	}
+	
+	/** Sets how long nextLine() waits for the CaveServer, in milliseconds. */
+	public void setTimeout(int timeout) throws IOException {
+		s.setSoTimeout(timeout);
+	}
+	
 	/** Send a move message to the CaveServer. */
 	public void move(String room) throws IOException {
 		out.println(Protocol.MOVE_ACTION + " " + room);
 	}
 	
-	/** Send a shoot message to the CaveServer. */
+	/** Send a shoot message to the CaveServer; room may be a path of several
+	 * room ids, separated by spaces.
+	 */
 	public void shoot(String room) throws IOException {
 		out.println(Protocol.SHOOT_ACTION + " " + room);
 	}
@@ -88,18 +290,98 @@ public class CaveServerProxy {
 		out.println(Protocol.CLIMB_ACTION);
 	}
 	
-	/** Send a connect message to the CaveSystemServer. */
+	/** Send a connect message to the CaveSystemServer; if server is empty,
+	 * the CaveSystemServer chooses the cave.
+	 */
 	public void connect(String server) throws IOException {
-		out.println(Protocol.CONNECT + " " + server);
+		out.println(server.isEmpty() ? Protocol.CONNECT : Protocol.CONNECT + " " + server);
+	}
+	
+	/** Tell the CaveServer that we will pipeline our messages. */
+	public void pipeline() throws IOException {
+		out.println(Protocol.PIPELINE);
+	}
+	
+	/** Ask the CaveServer to send binary frames instead of text. */
+	public void binary() throws IOException {
+		binaryRequested = true;
+		out.println(Protocol.BINARY);
+	}
+	
+	/** Returns the most recent senses, if binary framing is in use. */
+	public Senses getSenses() {
+		return senses;
 	}
 	
 	/** Returns true if there is a message to be read from the CaveServer. */
 	public boolean ready() throws IOException {
-		return in.ready();
+		return !decoded.isEmpty() || in.available() > 0;
 	}
 	
 	/** Returns a line from the cave server. */
 	public String nextLine() throws IOException {
-		return in.readLine();
+		if(binary) {
+			try {
+				while(decoded.isEmpty()) {
+					readFrame();
+				}
+			} catch(EOFException ex) {
+				return null;
+			}
+			return decoded.removeFirst();
+		}
+		String line = readLine();
+		if(binaryRequested && Protocol.BINARY.equals(line)) {
+			binary = true;
+		}
+		return line;
+	}
+	
+	/** Reads a line of text, or returns null at the end of the stream. */
+	protected String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c = in.read();
+		if(c < 0) {
+			return null;
+		}
+		while(c >= 0 && c != '\n') {
+			line.write(c);
+			c = in.read();
+		}
+		String t = line.toString("UTF-8");
+		return t.endsWith("\r") ? t.substring(0, t.length()-1) : t;
+	}
+	
+	/** Reads a frame, and appends the equivalent text lines to decoded. */
+	protected void readFrame() throws IOException {
+		int type = in.readUnsignedByte();
+		int length = in.readUnsignedShort();
+		switch(type) {
+		case Protocol.FRAME_SENSES:
+			senses = Senses.read(in);
+			decoded.add(Protocol.BEGIN_SENSES);
+			decoded.addAll(senses.toLines());
+			decoded.add(Protocol.END_SENSES);
+			break;
+		case Protocol.FRAME_NOTIFICATION:
+			decoded.add(Protocol.BEGIN_NOTIFICATION);
+			for(int n = in.readUnsignedShort(); n > 0; --n) {
+				decoded.add(in.readUTF());
+			}
+			decoded.add(Protocol.END_NOTIFICATION);
+			break;
+		case Protocol.FRAME_DIED:
+			decoded.add(Protocol.DIED);
+			break;
+		case Protocol.FRAME_SEQ:
+			decoded.add(Protocol.SEQ + " " + in.readInt());
+			break;
+		case Protocol.FRAME_HANDOFF:
+			decoded.add(in.readUTF());
+			break;
+		default:
+			// skip frames we don't understand:
+			in.readFully(new byte[length]);
+		}
 	}
 }
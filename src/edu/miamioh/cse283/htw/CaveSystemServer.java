@@ -1,9 +1,54 @@
 package edu.miamioh.cse283.htw;
 
-import java.io.IOException;
+import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 
+/** The CaveSystemServer class takes the following command-line parameters:
+ * 
+ * <port number for clients (CaveServers use the next one)>
+ * 
+ * E.g., "1234"
+ * 
+ * Each player is first sent the list of caves, and may then choose one with
+ * CONNECT <name>.  Players who send CONNECT without a name, or who send
+ * nothing for htw.connectTimeout milliseconds (default 10000), are given
+ * a cave by load instead.
+ * 
+ * Players are handed off to caves by their load, as reported by LOAD
+ * messages: of two caves chosen at random, the one with fewer players gets
+ * the player ("power of two choices").  Caves that are full, or whose 99th
+ * percentile action time is over htw.maxLatency microseconds (default
+ * 1000000), aren't given any more players while there are others that have
+ * room.
+ * 
+ * CaveServers send a HEARTBEAT whenever they have sent nothing else for a
+ * while.  A cave that sends nothing at all for htw.timeout milliseconds
+ * (default 3000) is presumed dead, and is dropped; if it recovers, it
+ * registers again.  A cave that registers under the name of one that is
+ * still listed replaces it if it has the same address and port (it must
+ * have restarted), and is turned away otherwise.
+ * 
+ * The HANDOFF message for each cave is encoded when it registers, so that
+ * handing a player off is a single write.  Caves' addresses are given to
+ * players as numbers; setting htw.resolveNames=true gives their host names
+ * instead, which are looked up again every htw.nameTtl milliseconds
+ * (default 60000) on a thread of their own, never while a player waits or
+ * a cave's heartbeat goes unanswered; until a cave's name is found, its
+ * number is given.
+ * 
+ * Players can be moved from one cave to another while they play (see
+ * Protocol.MIGRATE), by typing these commands into the CaveSystemServer:
+ *   caves                      lists the caves, and their load
+ *   migrate <name> <count>     moves count players off the named cave
+ *   drain <name>               moves every player off the named cave, and
+ *                              sends it no more
+ *   undrain <name>             sends the named cave players again
+ */
 public class CaveSystemServer {
 
 	/** Port base. */
@@ -15,17 +60,57 @@ public class CaveSystemServer {
 	/** Socket for accepting connections from players. */
 	protected ServerSocket clientSocket;
 
-	/** Random number generator (used to pick caves for players). */
-	protected Random rng;
+	/** Proxies to the registered CaveServers (see CaveDirectory). */
+	protected AtomicReference<CaveDirectory> directory;
 
-	/** List of proxies to CaveServers. */
-	protected ArrayList<CaveServerProxy> caves;
+	/** Runs the threads that handle CaveServer and client connections. */
+	protected ExecutorService executor;
+
+	/** Caves slower than this (99th percentile, in microseconds) are skipped. */
+	protected long maxLatency;
+
+	/** Caves that send nothing for this long (in milliseconds) are dropped. */
+	protected int timeout;
+
+	/** Whether players are given caves' host names, rather than addresses. */
+	protected boolean resolveNames;
+
+	/** How long a cave's host name is used before it is looked up again. */
+	protected long nameTtl;
+
+	/** A player on their way from one cave to another (see transfer()). */
+	protected static class Migration {
+		/** Cave the player is leaving. */
+		protected final CaveServerProxy from;
+
+		/** Cave the player's state was sent to. */
+		protected final CaveServerProxy to;
+
+		/** Constructor. */
+		public Migration(CaveServerProxy from, CaveServerProxy to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/** Players migrating between caves, by token. */
+	protected ConcurrentHashMap<String, Migration> migrations;
+
+	/** Players who haven't chosen a cave in this long (in milliseconds) are
+	 * given one. */
+	protected int connectTimeout;
 
 	/** Constructor. */
 	public CaveSystemServer(int portBase) {
 		this.portBase = portBase;
-		this.rng = new Random();
-		this.caves = new ArrayList<CaveServerProxy>();
+		this.directory = new AtomicReference<CaveDirectory>(new CaveDirectory());
+		this.migrations = new ConcurrentHashMap<String, Migration>();
+		this.executor = HandlerExecutors.create();
+		this.maxLatency = Long.getLong("htw.maxLatency", 1000000);
+		this.timeout = Integer.getInteger("htw.timeout", 3000);
+		this.connectTimeout = Integer.getInteger("htw.connectTimeout", 10000);
+		this.resolveNames = Boolean.getBoolean("htw.resolveNames");
+		this.nameTtl = Long.getLong("htw.nameTtl", 60000);
 	}
 
 	/** Returns the port number to use for accepting client connections. */
@@ -34,14 +119,35 @@ public class CaveSystemServer {
 	/** Returns the port number to use for accepting cave server connections. */
 	public int getCaveServerPort() { return portBase+1; }
 
-	/** Adds a cave to this cave system. */
-	public synchronized void addCave(CaveServerProxy c) {
-		caves.add(c);
+	/** Adds a cave to this cave system, replacing any cave of the same name
+	 * at the same address and port (which is presumed to have restarted).
+	 * Returns false, and adds nothing, if the name belongs to another cave.
+	 */
+	public boolean addCave(CaveServerProxy c) {
+		CaveDirectory d;
+		CaveServerProxy old;
+		do {
+			d = directory.get();
+			old = d.get(c.getName());
+			if(old != null && !(old.getClientAddress().equals(c.getClientAddress())
+					&& old.getClientPort() == c.getClientPort())) {
+				return false;
+			}
+		} while(!directory.compareAndSet(d, d.with(c)));
+		if(old != null) {
+			try { old.close(); } catch(IOException ex) { }
+		}
+		return true;
 	}
 
-	/** Removes a cave from this cave system. */
-	public synchronized void removeCave(CaveServerProxy c) {
-		caves.remove(c);
+	/** Removes a cave from this cave system; returns false if it wasn't there. */
+	public boolean removeCave(CaveServerProxy c) {
+		CaveDirectory d, e;
+		do {
+			d = directory.get();
+			e = d.without(c);
+		} while(e != d && !directory.compareAndSet(d, e));
+		return e != d;
 	}
 
 	/** This thread manages a single CaveServer. */
@@ -56,23 +162,58 @@ public class CaveSystemServer {
 		/** Handle a single CaveServer. */
 		public void run() {
 			try {
+				// a cave that goes quiet for too long is presumed dead:
+				cave.setTimeout(timeout);
+
 				// we're expecting to receive a "REGISTER" message:
 				String line = cave.nextLine();
 				
-				if(line.startsWith(Protocol.REGISTER)) {
+				if(line != null && line.startsWith(Protocol.REGISTER)) {
 					String[] words = line.split(" ");
 					cave.setClientAddress(InetAddress.getByName(words[1]));
 					cave.setClientPort(Integer.parseInt(words[2]));
+					// caves that don't give a name are known by their address:
+					cave.setName(words.length > 3 ? line.split(" ", 4)[3] : words[1] + ":" + words[2]);
+					// the name is looked up elsewhere, so that this thread
+					// can answer heartbeats meanwhile:
+					cave.encodeHandoff(false);
+					if(resolveNames) {
+						cave.resolveHandoff(executor);
+					}
 					System.out.println(line);
 					
 					// if we reach here, address and port are good.  add this
-					// cave server to the list:
-					addCave(cave);
+					// cave server to the list, unless another cave has its name:
+					if(!addCave(cave)) {
+						System.out.println("REJECTED " + cave.getName() + ": name in use by another cave");
+						return;
+					}
 					
-					// now put this thread to sleep until the connection is broken
-					// (this throws an exception when the socket closes; there's a
-					// bit of delay here, but acceptable for this project):
-					while(true) { line = cave.nextLine(); }
+					// now answer LOAD and HEARTBEAT messages until the connection 
+					// is broken, or the cave goes quiet (nextLine() throws a
+					// SocketTimeoutException after timeout ms of silence):
+					while((line = cave.nextLine()) != null) {
+						if(line.startsWith(Protocol.LOAD)) {
+							words = line.split(" ");
+							cave.setLoad(Integer.parseInt(words[1]), Long.parseLong(words[2]),
+									Long.parseLong(words[3]), Integer.parseInt(words[4]));
+							cave.heartbeat();
+						} else if(line.startsWith(Protocol.HEARTBEAT)) {
+							cave.heartbeat();
+						} else if(line.startsWith(Protocol.TRANSFER)) {
+							transfer(cave, line.split(" "));
+						} else if(line.startsWith(Protocol.MIGRATED)) {
+							// the player's destination is ready; tell their source:
+							words = line.split(" ");
+							Migration m = migrations.get(words[1]);
+							if(m != null && m.to == cave && migrations.remove(words[1], m)) {
+								m.from.migrated(words[1], cave);
+							}
+						}
+						if(resolveNames && cave.getHandoffAge() > nameTtl) {
+							cave.resolveHandoff(executor);
+						}
+					}
 				}
 
 				// if the line didn't start with REGISTER, we can't really do
@@ -80,22 +221,91 @@ public class CaveSystemServer {
 				// the thread.
 			} catch(Exception ex) {
 			} finally {
-				removeCave(cave);
+				if(removeCave(cave)) {
+					System.out.println("DROPPED " + cave.getName());
+				}
+				dropMigrations(cave);
+				try { cave.close(); } catch(IOException ex) { }
 			}
 		}
 	}
 	
+	/** Sends a player who is leaving the given cave (as described by the words
+	 * of a TRANSFER message) to another cave, chosen by load.
+	 */
+	protected void transfer(CaveServerProxy from, String[] words) {
+		ArrayList<CaveServerProxy> others = new ArrayList<CaveServerProxy>(directory.get().getCaves());
+		others.remove(from);
+		CaveServerProxy to = chooseCave(others);
+		if(to == null) {
+			from.migrated(words[1], null);
+			return;
+		}
+		to.handedOff();
+		migrations.put(words[1], new Migration(from, to));
+		to.transfer(words[1], PlayerState.decode(words, 2));
+	}
+
+	/** Forgets the migrations to or from a cave whose connection has gone;
+	 * players who were on their way to it from another cave stay there.
+	 */
+	protected void dropMigrations(CaveServerProxy cave) {
+		for(Map.Entry<String, Migration> e : migrations.entrySet()) {
+			Migration m = e.getValue();
+			if((m.from == cave || m.to == cave) && migrations.remove(e.getKey(), m)
+					&& m.from != cave) {
+				m.from.migrated(e.getKey(), null);
+			}
+		}
+	}
+
+	/** This is the thread that reads commands from the console. */
+	public class ConsoleThread implements Runnable {
+		public void run() {
+			try {
+				BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+				String line;
+				while((line = console.readLine()) != null) {
+					String[] words = line.trim().split("\\s+");
+					CaveServerProxy c = (words.length > 1) ? directory.get().get(words[1]) : null;
+					if(words[0].equals("caves")) {
+						for(CaveServerProxy i : directory.get().getCaves()) {
+							System.out.println(i.getName() + ": " + i.getLoad() + " players, p99 " 
+									+ i.getLatency() + "us" + (i.isDraining() ? ", draining" : ""));
+						}
+					} else if(words.length < 2 || words[0].isEmpty()) {
+						System.out.println("Commands: caves, migrate <name> <count>, drain <name>, undrain <name>");
+					} else if(c == null) {
+						System.out.println("No cave named " + words[1]);
+					} else if(words[0].equals("migrate") && words.length > 2 && words[2].matches("\\d+")) {
+						c.migrate(Math.max(1, Integer.parseInt(words[2])));
+					} else if(words[0].equals("drain")) {
+						c.setDraining(true);
+						c.migrate(0);
+					} else if(words[0].equals("undrain")) {
+						c.setDraining(false);
+					} else {
+						System.out.println("Commands: caves, migrate <name> <count>, drain <name>, undrain <name>");
+					}
+				}
+			} catch(Exception ex) {
+				// the console is a convenience; the server carries on without it.
+				ex.printStackTrace();
+			}
+		}
+	}
+
 	/** This is the thread that accepts connections from CaveServers. 
 	 *
-	 * All it does is spawn new Threads for new connections from 
-	 * CaveServers.
+	 * All it does is hand new connections from CaveServers to the
+	 * executor.
 	 */
 	public class CaveServerListenerThread implements Runnable {
 		public void run() {
 			try {
 				while(true) {
 					CaveServerProxy cave = new CaveServerProxy(caveSocket.accept());
-					(new Thread(new CaveServerThread(cave))).start();
+					executor.execute(new CaveServerThread(cave));
 				}
 			} catch(Exception ex) {
 				// If an exception is thrown, we can't fix it here -- Crash,
@@ -106,10 +316,57 @@ public class CaveSystemServer {
 		}
 	}
 	
-	/** Redirects a client to a random cave server. */
-	public synchronized void handoff(ClientProxy client) throws IOException {
-		CaveServerProxy c = caves.get(rng.nextInt(caves.size()));
-		client.handoff(c.getClientAddress(), c.getClientPort());
+	/** Chooses one of the given caves for a player (see above), or returns
+	 * null if every cave is full.
+	 */
+	protected CaveServerProxy chooseCave(List<CaveServerProxy> caves) {
+		if(caves.isEmpty()) {
+			return null;
+		}
+		Random rng = ThreadLocalRandom.current();
+		CaveServerProxy a = caves.get(rng.nextInt(caves.size()));
+		CaveServerProxy b = caves.get(rng.nextInt(caves.size()));
+		if(a.hasRoom(maxLatency) && b.hasRoom(maxLatency)) {
+			return a.getLoad() <= b.getLoad() ? a : b;
+		} else if(a.hasRoom(maxLatency)) {
+			return a;
+		} else if(b.hasRoom(maxLatency)) {
+			return b;
+		}
+		// both are full; fall back to the least loaded cave that has room:
+		CaveServerProxy best = null;
+		for(CaveServerProxy c : caves) {
+			if(c.hasRoom(maxLatency) && (best == null || c.getLoad() < best.getLoad())) {
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	/** Redirects a client to the cave server chosen for it: the one named,
+	 * or if name is null, one chosen by load.  Returns false if there is no
+	 * such cave, or no cave with room.
+	 */
+	public boolean handoff(ClientProxy client, String name) throws IOException {
+		CaveDirectory d = directory.get();
+		CaveServerProxy c = (name == null) ? chooseCave(d.getCaves()) : d.get(name);
+		if(c == null || c.isDraining()) {
+			ArrayList<String> none = new ArrayList<String>();
+			if(name == null) {
+				none.add("There are no caves with room for you.  Please try again later.");
+			} else if(c != null) {
+				none.add("The cave " + name + " is closed for now.");
+			} else {
+				none.add("There is no cave named " + name + ".");
+			}
+			client.sendNotifications(none);
+			client.flush();
+			return false;
+		}
+		c.handedOff();
+		client.handoff(c.getHandoff());
+		client.flush();
+		return true;
 	}
 
 	/** This is the thread that handles a single client connection. 
@@ -123,15 +380,33 @@ public class CaveSystemServer {
 			this.client = client;
 		}
 
-		/** Handoff the player to a random CaveServer.
+		/** Lists the caves, and hands the player off to the one they choose.
 		 */
 		public void run() {
 			try {
-				handoff(client);
-			} catch(Exception ex) {
-				// If an exception is thrown, we can't fix it here -- Crash.
-				ex.printStackTrace();
-				System.exit(1);
+				EventBus.Event listing = directory.get().getListing();
+				client.sendEncoded(listing.text, listing.frame);
+				client.flush();
+				client.setTimeout(connectTimeout);
+				String line;
+				try {
+					while((line = client.nextLine()) != null) {
+						if(line.startsWith(Protocol.CONNECT)) {
+							String name = line.substring(Protocol.CONNECT.length()).trim();
+							if(handoff(client, name.isEmpty() ? null : name) || name.isEmpty()) {
+								// handed off, or there's nowhere to go:
+								break;
+							}
+						}
+					}
+				} catch(SocketTimeoutException ex) {
+					// they didn't choose; choose for them:
+					handoff(client, null);
+				}
+			} catch(IOException ex) {
+				// the player hung up; nothing more to do.
+			} finally {
+				try { client.close(); } catch(IOException ex) { }
 			}
 		}
 	}
@@ -148,11 +423,12 @@ public class CaveSystemServer {
 
 			// Start the thread listening for caves:
 			(new Thread(new CaveServerListenerThread())).start();
+			(new Thread(new ConsoleThread())).start();
 
 			// and now loop forever, accepting client connections:
 			while(true) {
 				ClientProxy client = new ClientProxy(clientSocket.accept());
-				(new Thread(new ClientThread(client))).start();
+				executor.execute(new ClientThread(client));
 			}
 		} catch(Exception ex) {
 			// If an exception is caught, it's likely because of a network problem
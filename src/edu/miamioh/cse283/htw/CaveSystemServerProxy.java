@@ -1,29 +1,112 @@
-package edu.miamioh.cse283.htw;
-
-import java.io.*;
-import java.net.*;
-
-public class CaveSystemServerProxy {
-	/** This socket is connected to the cave system server. */
-	protected Socket s;
-
-	/** Used to write to the cave's socket. */
-	protected PrintWriter out;
-
-	/** Constructor. */
-	public CaveSystemServerProxy(Socket s) throws IOException {
-		this.s = s;
-		try {
-			this.out = new PrintWriter(s.getOutputStream(), true);                   
-		} catch(IOException ex) {
-			try { s.close(); } catch(Exception ex2) { }
-			throw ex;
-		}
-	}
-	
-	/** Register a cave server. */
-	public void register(ServerSocket s) throws IOException {
-		String msg = Protocol.REGISTER + " " + s.getInetAddress().getLocalHost().getHostAddress() + " " + s.getLocalPort();
-		out.println(msg);
-	}
-}
+package edu.miamioh.cse283.htw;
+
+import java.io.*;
+import java.net.*;
+
+/** Proxy to the CaveSystemServer, as seen from a CaveServer.
+ * 
+ * Every HEARTBEAT or LOAD sent is answered by a HEARTBEAT from the
+ * CaveSystemServer, which arrives through nextLine() along with any other
+ * messages (e.g., MIGRATE); if nothing arrives for htw.timeout milliseconds
+ * (default 3000), nextLine() throws an exception, and the connection can be
+ * replaced with reconnect().  Messages may be sent from any thread.
+ */
+public class CaveSystemServerProxy {
+	/** This socket is connected to the cave system server. */
+	protected Socket s;
+
+	/** Used to read from the cave system server's socket. */
+	protected volatile BufferedReader in;
+
+	/** Used to write to the cave's socket. */
+	protected volatile PrintWriter out;
+
+	/** Address of the cave system server. */
+	protected InetAddress addr;
+
+	/** Port of the cave system server. */
+	protected int port;
+
+	/** Constructor. */
+	public CaveSystemServerProxy(Socket s) throws IOException {
+		this.addr = s.getInetAddress();
+		this.port = s.getPort();
+		open(s);
+	}
+
+	/** Constructor; connects to the cave system server at the given address and port. */
+	public CaveSystemServerProxy(InetAddress addr, int port) throws IOException {
+		this(new Socket(addr, port));
+	}
+
+	/** Starts using the given socket. */
+	protected void open(Socket s) throws IOException {
+		this.s = s;
+		try {
+			s.setSoTimeout(Integer.getInteger("htw.timeout", 3000));
+			this.in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			this.out = new PrintWriter(s.getOutputStream(), true);                   
+		} catch(IOException ex) {
+			try { s.close(); } catch(Exception ex2) { }
+			throw ex;
+		}
+	}
+
+	/** Closes the current connection, and opens a new one to the same cave
+	 * system server (the cave must then register again).
+	 */
+	public void reconnect() throws IOException {
+		try { s.close(); } catch(Exception ex) { }
+		open(new Socket(addr, port));
+	}
+	
+	/** Report the load on a cave server (see Protocol.LOAD). */
+	public void load(int players, long rate, long p99, int capacity) throws IOException {
+		send(Protocol.LOAD + " " + players + " " + rate + " " + p99 + " " + capacity);
+	}
+
+	/** Tell the cave system server that this cave server is still alive. */
+	public void heartbeat() throws IOException {
+		send(Protocol.HEARTBEAT);
+	}
+
+	/** Send a migrating player's state to the cave system server. */
+	public void transfer(String token, PlayerState state) throws IOException {
+		send(Protocol.TRANSFER + " " + token + " " + state.encode());
+	}
+
+	/** Tell the cave system server that a player migrating here is expected. */
+	public void migrated(String token) throws IOException {
+		send(Protocol.MIGRATED + " " + token);
+	}
+
+	/** Returns a line from the cave system server, or null if it closed the
+	 * connection; throws an exception if it has been silent for too long.
+	 */
+	public String nextLine() throws IOException {
+		return in.readLine();
+	}
+
+	/** Register a cave server under the given name.
+	 * 
+	 * Unless the server socket is bound to a particular address, the cave is
+	 * registered at the address that this connection to the cave system 
+	 * server comes from, which needs no name to be looked up.
+	 */
+	public void register(ServerSocket ss, String name) throws IOException {
+		InetAddress addr = ss.getInetAddress();
+		if(addr == null || addr.isAnyLocalAddress()) {
+			addr = s.getLocalAddress();
+		}
+		String msg = Protocol.REGISTER + " " + addr.getHostAddress() + " " + ss.getLocalPort() + " " + name;
+		send(msg);
+	}
+
+	/** Sends a line, throwing an exception if the connection has failed. */
+	protected void send(String msg) throws IOException {
+		out.println(msg);
+		if(out.checkError()) {
+			throw new IOException("lost connection to cave system server");
+		}
+	}
+}
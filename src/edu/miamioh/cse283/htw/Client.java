@@ -14,6 +14,9 @@ import java.util.regex.Pattern;
  * 
  * E.g., "localhost 1234" 
  *
+ * Setting the system property htw.binary=true asks CaveServers for binary
+ * framing instead of text (see Protocol.BINARY).
+ *
  */
 public class Client {
 	
@@ -55,8 +58,8 @@ public class Client {
 			ArrayList<String> lastNotification = new ArrayList<String>();
 
 			Pattern movePattern = Pattern.compile("^m(?:ove)?\\s+(\\w+)$");
-			Pattern shootPattern = Pattern.compile("^s(?:hoot)?\\s+(\\w+)$");
-			Pattern connectPattern = Pattern.compile("^co(?:nnect)?\\s+(\\w+)$");
+			Pattern shootPattern = Pattern.compile("^s(?:hoot)?\\s+(\\w+(?:\\s+\\w+)*)$");
+			Pattern connectPattern = Pattern.compile("^co(?:nnect)?(?:\\s+(\\S+))?$");
 			Pattern pickupPattern = Pattern.compile("^p(?:ickup)?$");
 			Pattern quitPattern = Pattern.compile("^q(?:uit)?$");
 			Pattern climbPattern = Pattern.compile("^cl(?:imb)?$");
@@ -98,7 +101,7 @@ public class Client {
 
 					if(connect.matches()) {
 						lastSenses.clear();
-						cave.connect(connect.group(1));
+						cave.connect(connect.group(1) == null ? "" : connect.group(1));
 						
 					} else if(move.matches()) {
 						lastSenses.clear();
@@ -106,7 +109,7 @@ public class Client {
 						
 					} else if(shoot.matches()) {
 						lastSenses.clear();
-						cave.shoot(shoot.group(1));
+						cave.shoot(shoot.group(1).replaceAll("\\s+", " "));
 						
 					} else if(pickup.matches()) {
 						lastSenses.clear();
@@ -137,6 +140,13 @@ public class Client {
 						InetAddress addr = InetAddress.getByName(words[1]);
 						int port = Integer.parseInt(words[2]);
 						cave = cave.handoff(addr, port);
+						if(words.length > 3) {
+							// we're migrating; pick up where we left off:
+							cave.resume(words[3]);
+						}
+						if(Boolean.getBoolean("htw.binary")) {
+							cave.binary();
+						}
 						lastSenses.clear();
 						lastNotification.clear();
 						
@@ -1,78 +1,506 @@
 package edu.miamioh.cse283.htw;
 
 import java.io.*;
-import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 
 
-/** Proxy client object. 
- * 
+/** Proxy client object.
+ *
+ * A ClientProxy either wraps a blocking Socket, or a non-blocking SocketChannel
+ * that is driven by a Selector (see CaveServer.SelectorLoop).  In the latter
+ * case, input is buffered by readAvailable(), which splits it into lines as
+ * it arrives (a line longer than MAX_LINE bytes fails the connection), and
+ * output is queued until the channel can accept it.
+ *
+ * Messages are sent as text, unless the client has negotiated binary framing
+ * (see Protocol.BINARY and useBinary()).
+ *
+ * Messages are not sent as they are written.  Everything written for one
+ * response accumulates in a reusable buffer, and goes out in a single write
+ * when flush() is called.
  */
 public class ClientProxy {
-	
+
 	/** This socket is connected to a client. */
 	protected Socket s;
-	
+
 	/** Used to read from the client's socket. */
 	protected BufferedReader in;
 
-	/** Used to write to the client's socket. */
+	/** Used to write text to the response. */
 	protected PrintWriter out;
-	
+
+	/** Output stream of the socket (null when using a channel). */
+	protected OutputStream socketOut;
+
+	/** Everything written since the last flush(). */
+	protected Response response;
+
+	/** Used to write the payloads of binary frames to the response. */
+	protected DataOutputStream frameData;
+
+	/** Non-blocking channel to the client (null when using a blocking Socket). */
+	protected SocketChannel channel;
+
+	/** Selection key for the channel, set by the selector loop that owns it. */
+	protected SelectionKey key;
+
+	/** Longest payload a frame can have (its length is an unsigned short). */
+	public static final int MAX_FRAME = 65535;
+
+	/** Longest line a client may send on a channel, in bytes. */
+	public static final int MAX_LINE = 8192;
+
+	/** Bytes read from the channel that are not yet part of a complete line. */
+	protected ByteBuffer input;
+
+	/** Number of bytes at the start of input that hold no newline. */
+	protected int scanned;
+
+	/** Complete lines read from the channel, not yet returned by nextLine(). */
+	protected ArrayDeque<String> lines;
+
+	/** Flushed bytes that the channel has not yet accepted. */
+	protected ByteBuffer output;
+
+	/** Most flushed bytes a channel may hold back for a client that isn't
+	 * reading; beyond this, the connection fails.
+	 */
+	public static final int MAX_BACKLOG = 1 << 20;
+
+	/** How long a channel closed with output still queued goes on sending it,
+	 * in milliseconds.
+	 */
+	public static final long LINGER = 2000;
+
+	/** When a channel that is sending the last of its output must be closed
+	 * regardless, from System.nanoTime(); 0 until close() is called.
+	 */
+	protected long closeBy;
+
+	/** Whether this client has negotiated binary framing. */
+	protected boolean binary;
+
+	/** Buffer that holds a response until it is flushed. */
+	protected static class Response extends ByteArrayOutputStream {
+		/** Returns a ByteBuffer view of the buffered bytes (not a copy). */
+		public ByteBuffer wrap() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+
+		/** Overwrites the 16-bit length field of a frame that starts at pos;
+		 * throws an exception if the payload is too long for it.
+		 */
+		public void setLength(int pos) {
+			int length = count - pos - 3;
+			if(length > MAX_FRAME) {
+				throw new IllegalStateException("frame payload of " + length + " bytes");
+			}
+			setShort(pos + 1, length);
+		}
+
+		/** Overwrites the 16-bit value at pos. */
+		public void setShort(int pos, int value) {
+			buf[pos] = (byte)(value >> 8);
+			buf[pos+1] = (byte)value;
+		}
+
+		/** Discards everything written after the first size bytes. */
+		public void truncate(int size) {
+			count = size;
+		}
+
+		/** Writes lines as NOTIFICATION frames (through d, which writes to
+		 * this buffer), starting a new frame whenever the next line would make
+		 * one longer than MAX_FRAME bytes.
+		 */
+		public void writeNotifications(DataOutputStream d, Collection<String> lines) throws IOException {
+			int pos = beginNotification(d);
+			int n = 0;
+			for(String i : lines) {
+				int end = count;
+				d.writeUTF(i);
+				if(n > 0 && count - pos - 3 > MAX_FRAME) {
+					// end this frame without the line, and start another:
+					truncate(end);
+					endNotification(pos, n);
+					pos = beginNotification(d);
+					n = 0;
+					d.writeUTF(i);
+				}
+				++n;
+			}
+			endNotification(pos, n);
+		}
+
+		/** Starts a NOTIFICATION frame, and returns its position. */
+		protected int beginNotification(DataOutputStream d) throws IOException {
+			int pos = count;
+			d.writeByte(Protocol.FRAME_NOTIFICATION);
+			d.writeShort(0);
+			d.writeShort(0);
+			return pos;
+		}
+
+		/** Fills in the length and number of lines of a NOTIFICATION frame. */
+		protected void endNotification(int pos, int n) {
+			setShort(pos + 3, n);
+			setLength(pos);
+		}
+	}
+
 	/** Constructor. */
 	public ClientProxy(Socket s) throws IOException {
 		this.s = s;
 		try {
-			this.out = new PrintWriter(s.getOutputStream(), true);                   
+			this.socketOut = s.getOutputStream();
 			this.in = new BufferedReader(new InputStreamReader(s.getInputStream()));
 		} catch(IOException ex) {
 			try { s.close(); } catch(IOException ex2) { }
 			throw ex;
 		}
+		this.response = new Response();
+		this.out = new PrintWriter(new OutputStreamWriter(response), false);
+		this.frameData = new DataOutputStream(response);
+	}
+
+	/** Constructor for a client connected by streams rather than a socket
+	 * (e.g., for benchmarks).
+	 */
+	public ClientProxy(InputStream in, OutputStream out) {
+		this.socketOut = out;
+		this.in = new BufferedReader(new InputStreamReader(in));
+		this.response = new Response();
+		this.out = new PrintWriter(new OutputStreamWriter(response), false);
+		this.frameData = new DataOutputStream(response);
 	}
-	
-	/** Close the connection to the client. */
+
+	/** Constructor for a channel that will be registered with a Selector. */
+	public ClientProxy(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		this.s = channel.socket();
+		try {
+			channel.configureBlocking(false);
+			this.input = ByteBuffer.allocate(1024);
+			this.lines = new ArrayDeque<String>();
+			this.output = ByteBuffer.allocate(0);
+		} catch(IOException ex) {
+			try { channel.close(); } catch(IOException ex2) { }
+			throw ex;
+		}
+		this.response = new Response();
+		this.out = new PrintWriter(new OutputStreamWriter(response), false);
+		this.frameData = new DataOutputStream(response);
+	}
+
+	/** Close the connection to the client.
+	 *
+	 * A channel that still has output queued stops reading, and is only
+	 * closed by closeIfDone() once the output has been sent (or LINGER
+	 * milliseconds have passed), so that the last thing said isn't lost.
+	 */
 	public void close() throws IOException {
-		s.close();
+		if(channel != null && output.hasRemaining() && key != null && key.isValid()) {
+			closeBy = System.nanoTime() + LINGER * 1000000L;
+			key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+		if(s != null) {
+			s.close();
+		} else {
+			in.close();
+			socketOut.close();
+		}
+	}
+
+	/** Returns true if close() has been called on this channel, but it is
+	 * still sending the output that was queued.
+	 */
+	public boolean isLingering() {
+		return closeBy != 0 && channel.isOpen();
 	}
-	
-	/** Send a handoff message to this client. */
-	public void handoff(InetAddress addr, int port) throws IOException {
-		String msg = Protocol.HANDOFF + " " + addr.getHostName() + " " + port;
+
+	/** Closes a lingering channel if all its output has been sent, or it has
+	 * lingered long enough; returns true if it is now closed.
+	 */
+	public boolean closeIfDone() {
+		if(output.hasRemaining() && System.nanoTime() - closeBy < 0) {
+			return false;
+		}
+		try { s.close(); } catch(IOException ex) { }
+		return true;
+	}
+
+	/** Sets how long nextLine() waits for the client (blocking sockets only),
+	 * in milliseconds.
+	 */
+	public void setTimeout(int timeout) throws IOException {
+		s.setSoTimeout(timeout);
+	}
+
+	/** Returns true if the client has closed its end of the connection.
+	 *
+	 * ready() stays false once a socket has reached end of stream, so a
+	 * polling reader must ask this instead; it waits at most the given number
+	 * of milliseconds for input, and does not consume any (blocking sockets
+	 * only).
+	 */
+	public boolean hungUp(int timeout) throws IOException {
+		if(s == null || channel != null) {
+			return false;
+		}
+		s.setSoTimeout(timeout);
+		try {
+			in.mark(1);
+			if(in.read() < 0) {
+				return true;
+			}
+			in.reset();
+			return false;
+		} catch(SocketTimeoutException ex) {
+			return false;
+		} finally {
+			s.setSoTimeout(0);
+		}
+	}
+
+	/** Send a handoff message that was encoded in advance (see
+	 * CaveServerProxy.encodeHandoff()).
+	 */
+	public void handoff(byte[] msg) {
+		out.flush(); // keep the order of anything already written to out
+		response.write(msg, 0, msg.length);
+	}
+
+	/** Send a handoff message that moves a migrating player, with the given
+	 * token, to the cave at the given address and port.
+	 */
+	public void handoff(String addr, int port, String token) {
+		String msg = Protocol.HANDOFF + " " + addr + " " + port + " " + token;
+		if(binary) {
+			int pos = beginFrame(Protocol.FRAME_HANDOFF);
+			try {
+				frameData.writeUTF(msg);
+			} catch(IOException ex) {
+				// can't happen; frameData writes to memory.
+			}
+			response.setLength(pos);
+			return;
+		}
 		out.println(msg);
 	}
-	
-	/** Send a block message of notifications to the client. */
+
+	/** Acknowledge a BINARY message; everything sent after this is framed. */
+	public void useBinary() {
+		out.println(Protocol.BINARY);
+		out.flush(); // the frames that follow bypass out
+		binary = true;
+	}
+
+	/** Send a block message of notifications to the client (in several
+	 * frames, if there is too much for one).
+	 */
 	public void sendNotifications(ArrayList<String> blockMsg) {
+		if(binary) {
+			try {
+				response.writeNotifications(frameData, blockMsg);
+			} catch(IOException ex) {
+				// can't happen; frameData writes to memory.
+			}
+			return;
+		}
 		out.println(Protocol.BEGIN_NOTIFICATION);
 		for(String i : blockMsg) {
 			out.println(i);
 		}
 		out.println(Protocol.END_NOTIFICATION);
 	}
-	
-	/** Send a block message of sensory information to the client. */
-	public void sendSenses(ArrayList<String> blockMsg) {
-		out.println(Protocol.BEGIN_SENSES);
-		for(String i : blockMsg) {
-			out.println(i);
-		}
-		out.println(Protocol.END_SENSES);
+
+	/** Send a block message of sensory information to the client.
+	 *
+	 * The message is copied from the encoding that senses holds (see
+	 * Senses.encode()), rather than rendered again.
+	 */
+	public void sendSenses(Senses senses) {
+		out.flush(); // keep the order of anything already written to out
+		byte[] b = binary ? senses.getFrame() : senses.getText();
+		response.write(b, 0, b.length);
+	}
+
+	/** Send a message that was encoded in advance, as text and as a frame
+	 * (see EventBus.Event).
+	 */
+	public void sendEncoded(byte[] text, byte[] frame) {
+		out.flush(); // keep the order of anything already written to out
+		byte[] b = binary ? frame : text;
+		response.write(b, 0, b.length);
 	}
-	
+
 	/** Send a DIED message. */
 	public void died() {
+		if(binary) {
+			beginFrame(Protocol.FRAME_DIED);
+			return;
+		}
 		out.println(Protocol.DIED);
 	}
-	
-	/** Returns true if this client has data that can be read. */
+
+	/** Send a SEQ message. */
+	public void sendSequence(int n) {
+		if(binary) {
+			int pos = beginFrame(Protocol.FRAME_SEQ);
+			try {
+				frameData.writeInt(n);
+			} catch(IOException ex) {
+				// can't happen; frameData writes to memory.
+			}
+			response.setLength(pos);
+			return;
+		}
+		out.println(Protocol.SEQ + " " + n);
+	}
+
+	/** Starts a frame of the given type, and returns its position in the
+	 * response; its length must be filled in by response.setLength(pos) once
+	 * the payload has been written.
+	 */
+	protected int beginFrame(int type) {
+		int pos = response.size();
+		response.write(type);
+		response.write(0);
+		response.write(0);
+		return pos;
+	}
+
+	/** Returns true if this client has data that can be read.
+	 *
+	 * For a channel, this is only true once a complete line has been buffered.
+	 */
 	public boolean ready() throws IOException {
+		if(channel != null) {
+			return !lines.isEmpty();
+		}
 		return in.ready();
 	}
 
-	/** Get an action from the client. */
+	/** Get an action from the client.
+	 *
+	 * For a channel, this returns null if no complete line has been buffered.
+	 */
 	public String nextLine() throws IOException {
+		if(channel != null) {
+			return lines.poll();
+		}
 		return in.readLine();
 	}
+
+	/** Reads what the channel has available into the input buffer, and
+	 * splits off any complete lines; stops early once there are lines to
+	 * handle (the selector calls again for the rest).
+	 *
+	 * Returns false if the client has closed its end of the connection, and
+	 * throws an exception if the client sends a line longer than MAX_LINE.
+	 */
+	public boolean readAvailable() throws IOException {
+		while(true) {
+			if(!input.hasRemaining()) {
+				if(input.capacity() >= MAX_LINE) {
+					throw new IOException("line too long");
+				}
+				ByteBuffer t = ByteBuffer.allocate(Math.min(input.capacity()*2, MAX_LINE));
+				input.flip();
+				t.put(input);
+				input = t;
+			}
+			int n = channel.read(input);
+			splitLines();
+			if(n < 0) {
+				return false;
+			}
+			if(n == 0 || !lines.isEmpty()) {
+				return true;
+			}
+		}
+	}
+
+	/** Moves the complete lines in the input buffer to lines, scanning each
+	 * byte only once, and keeps whatever follows the last newline.
+	 */
+	protected void splitLines() throws IOException {
+		int start = 0;
+		for(int i=scanned; i<input.position(); ++i) {
+			if(input.get(i) == '\n') {
+				int end = (i > start && input.get(i-1) == '\r') ? i-1 : i;
+				lines.add(new String(input.array(), start, end - start, "UTF-8"));
+				start = i+1;
+			}
+		}
+		if(start > 0) {
+			input.flip();
+			input.position(start);
+			input.compact();
+		}
+		scanned = input.position();
+	}
+
+	/** Sends everything written since the last flush, in a single write.
+	 *
+	 * For a channel, this writes as much as the channel will accept (together
+	 * with anything left over from earlier flushes, as a gathering write).  If
+	 * the channel can't take all of it, the rest is kept, and the selection key
+	 * is switched from OP_READ to OP_WRITE, so that the client sends nothing
+	 * more until it has caught up, and the selector loop calls this again once
+	 * it can.  A client that falls more than MAX_BACKLOG bytes behind fails.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+		try {
+			if(channel == null) {
+				if(response.size() > 0) {
+					response.writeTo(socketOut);
+				}
+				return;
+			}
+
+			ByteBuffer fresh = response.wrap();
+			if(output.hasRemaining()) {
+				channel.write(new ByteBuffer[] { output, fresh });
+			} else if(fresh.hasRemaining()) {
+				channel.write(fresh);
+			}
+			if(fresh.hasRemaining()) {
+				// keep what the channel didn't take:
+				int needed = output.remaining() + fresh.remaining();
+				if(needed > MAX_BACKLOG) {
+					throw new IOException("client is not reading");
+				}
+				if(output.capacity() < needed) {
+					ByteBuffer t = ByteBuffer.allocate(Math.min(MAX_BACKLOG,
+							Math.max(needed, 2 * output.capacity())));
+					t.put(output);
+					output = t;
+				} else {
+					output.compact();
+				}
+				output.put(fresh);
+				output.flip();
+			}
+			if(key != null && key.isValid() && closeBy == 0) {
+				if(output.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+				} else {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+		} finally {
+			response.reset();
+		}
+	}
 }
@@ -0,0 +1,141 @@
+package edu.miamioh.cse283.htw;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Broadcasts events (e.g., deaths elsewhere in the cave) to every player.
+ *
+ * Each event is encoded once, as both a text and a binary NOTIFICATION
+ * message, and appended to a ring buffer.  Each player reads the ring from
+ * their own cursor (see deliver()), copying the encoded bytes straight into
+ * their response, so broadcasting to many players builds no strings and
+ * copies no lists.  Publishing an event only signals each subscriber's
+ * Mailbox, and those wakeups are coalesced.
+ *
+ * A player who falls more than the ring's capacity behind misses the oldest
+ * events.
+ */
+public class EventBus {
+
+	/** An event, already encoded; events never change once published. */
+	public static class Event {
+		/** Position of this event in the bus. */
+		protected final long sequence;
+
+		/** Whoever caused this event (who isn't told about it), or null. */
+		protected final Object origin;
+
+		/** NOTIFICATION message as text. */
+		protected final byte[] text;
+
+		/** NOTIFICATION frame, including its header (or several frames, if
+		 * the lines don't fit in one).
+		 */
+		protected final byte[] frame;
+
+		/** Constructor; encodes the given lines (as ClientProxy.sendNotifications()
+		 * would send them).
+		 */
+		public Event(long sequence, Object origin, String... lines) {
+			this.sequence = sequence;
+			this.origin = origin;
+			ClientProxy.Response b = new ClientProxy.Response();
+			try {
+				String nl = System.lineSeparator();
+				b.write((Protocol.BEGIN_NOTIFICATION + nl).getBytes("UTF-8"));
+				for(String i : lines) {
+					b.write((i + nl).getBytes("UTF-8"));
+				}
+				b.write((Protocol.END_NOTIFICATION + nl).getBytes("UTF-8"));
+				this.text = b.toByteArray();
+
+				b.reset();
+				b.writeNotifications(new DataOutputStream(b), Arrays.asList(lines));
+				this.frame = b.toByteArray();
+			} catch(IOException ex) {
+				// can't happen; everything is written to memory.
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/** Most recent events; event n is in slot n & mask. */
+	protected AtomicReferenceArray<Event> ring;
+
+	/** Capacity of the ring, less one. */
+	protected int mask;
+
+	/** Sequence number of the next event to be published. */
+	protected AtomicLong tail;
+
+	/** Mailboxes of the players to wake when an event is published. */
+	protected Set<Mailbox> subscribers;
+
+	/** Constructor; capacity is rounded up to a power of two. */
+	public EventBus(int capacity) {
+		int n = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.ring = new AtomicReferenceArray<Event>(n);
+		this.mask = n - 1;
+		this.tail = new AtomicLong();
+		this.subscribers = ConcurrentHashMap.newKeySet();
+	}
+
+	/** Starts waking the given mailbox for new events, and returns the cursor
+	 * from which its player should read them.
+	 */
+	public long subscribe(Mailbox m) {
+		subscribers.add(m);
+		return tail.get();
+	}
+
+	/** Stops waking the given mailbox. */
+	public void unsubscribe(Mailbox m) {
+		subscribers.remove(m);
+	}
+
+	/** Publishes an event, caused by origin (who isn't told), made up of the
+	 * given lines.
+	 */
+	public void publish(Object origin, String... lines) {
+		long n = tail.getAndIncrement();
+		ring.set((int)n & mask, new Event(n, origin, lines));
+		for(Mailbox m : subscribers) {
+			m.signal();
+		}
+	}
+
+	/** Returns true if there are events at or after the given cursor. */
+	public boolean hasEvents(long cursor) {
+		return cursor < tail.get();
+	}
+
+	/** Sends the events from the given cursor onwards (except those caused
+	 * by self) to the given client, and returns the new cursor.
+	 *
+	 * Stops at an event that has been counted but not yet stored; its
+	 * publisher wakes everyone again once it has been.
+	 */
+	public long deliver(long cursor, Object self, ClientProxy client) {
+		while(cursor < tail.get()) {
+			Event e = ring.get((int)cursor & mask);
+			if(e == null || e.sequence < cursor) {
+				break;
+			}
+			if(e.sequence > cursor) {
+				// fell behind, and these events have been overwritten; skip to
+				// the oldest the ring still holds:
+				cursor = Math.max(cursor + 1, tail.get() - (mask + 1));
+				continue;
+			}
+			if(e.origin != self) {
+				client.sendEncoded(e.text, e.frame);
+			}
+			++cursor;
+		}
+		return cursor;
+	}
+}
@@ -0,0 +1,59 @@
+package edu.miamioh.cse283.htw;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Creates the executors that run connection handlers.
+ *
+ * If the system property htw.virtualThreads=true is set, and the JVM supports
+ * them (Java 21 or later), each handler runs on its own virtual thread.
+ * Otherwise each handler runs on a platform thread from a cached pool, and
+ * useVirtualThreads() says so, so that callers don't block a platform thread
+ * where they would only have blocked a virtual one.
+ */
+public class HandlerExecutors {
+
+	/** Factory for virtual-thread executors, or null if they weren't asked
+	 * for, or this JVM can't make them.
+	 */
+	protected static final Method VIRTUAL = findVirtual();
+
+	/** Looks up the factory for virtual-thread executors (reflectively, so
+	 * that we still build on older JDKs), and makes sure it works: on Java
+	 * 19 and 20 it exists, but fails unless preview features are enabled.
+	 */
+	protected static Method findVirtual() {
+		if(!Boolean.getBoolean("htw.virtualThreads")) {
+			return null;
+		}
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			((ExecutorService)m.invoke(null)).shutdown();
+			return m;
+		} catch(ReflectiveOperationException ex) {
+			System.out.println("Virtual threads not supported by this JVM; using platform threads");
+			return null;
+		}
+	}
+
+	/** Returns true if the executors that create() returns run each handler
+	 * on a virtual thread.
+	 */
+	public static boolean useVirtualThreads() {
+		return VIRTUAL != null;
+	}
+
+	/** Returns a new executor for connection handlers. */
+	public static ExecutorService create() {
+		if(VIRTUAL != null) {
+			try {
+				return (ExecutorService)VIRTUAL.invoke(null);
+			} catch(ReflectiveOperationException ex) {
+				// can't happen; findVirtual() made one already.
+				throw new IllegalStateException(ex);
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+}
@@ -0,0 +1,94 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Thread-safe histogram of latencies, in nanoseconds.
+ *
+ * Values are counted in logarithmic buckets with 8 sub-buckets per power of
+ * two, so percentiles are accurate to within about 12%.  Recording a value
+ * is a single atomic increment.
+ */
+public class LatencyHistogram {
+
+	/** Number of sub-buckets per power of two (as a power of two). */
+	protected static final int SUB_BITS = 3;
+
+	/** Counts of values in each bucket. */
+	protected AtomicLongArray counts;
+
+	/** Constructor. */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray((64 - SUB_BITS) << SUB_BITS);
+	}
+
+	/** Returns the bucket that holds the given value. */
+	protected static int bucket(long v) {
+		if(v < (1 << SUB_BITS)) {
+			return (int)Math.max(v, 0);
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		int sub = (int)(v >>> exp) & ((1 << SUB_BITS) - 1);
+		return ((exp + 1) << SUB_BITS) + sub;
+	}
+
+	/** Returns the largest value that falls in the given bucket. */
+	protected static long highest(int bucket) {
+		if(bucket < (1 << SUB_BITS)) {
+			return bucket;
+		}
+		int exp = (bucket >> SUB_BITS) - 1;
+		long sub = bucket & ((1 << SUB_BITS) - 1);
+		return (((1L << SUB_BITS) + sub + 1) << exp) - 1;
+	}
+
+	/** Records a latency. */
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+	}
+
+	/** Returns the number of latencies recorded. */
+	public long getCount() {
+		long n = 0;
+		for(int i=0; i<counts.length(); ++i) {
+			n += counts.get(i);
+		}
+		return n;
+	}
+
+	/** Returns the latency below which the given fraction (e.g., 0.99) of
+	 * recorded latencies fall, or 0 if none have been recorded.
+	 */
+	public long percentile(double fraction) {
+		long[] c = new long[counts.length()];
+		long n = 0;
+		for(int i=0; i<c.length; ++i) {
+			c[i] = counts.get(i);
+			n += c[i];
+		}
+		long rank = (long)Math.ceil(fraction * n);
+		long seen = 0;
+		for(int i=0; i<c.length; ++i) {
+			seen += c[i];
+			if(seen > 0 && seen >= rank) {
+				return highest(i);
+			}
+		}
+		return 0;
+	}
+
+	/** Returns the recorded counts, and starts counting again from zero. */
+	public LatencyHistogram reset() {
+		LatencyHistogram t = new LatencyHistogram();
+		for(int i=0; i<counts.length(); ++i) {
+			t.counts.set(i, counts.getAndSet(i, 0));
+		}
+		return t;
+	}
+
+	/** Returns a summary of the percentiles, in milliseconds. */
+	public String summary() {
+		return String.format("n=%d p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+				getCount(), percentile(0.5)/1e6, percentile(0.9)/1e6,
+				percentile(0.99)/1e6, percentile(0.999)/1e6, percentile(1.0)/1e6);
+	}
+}
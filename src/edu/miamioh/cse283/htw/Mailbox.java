@@ -0,0 +1,102 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/** Notification mailbox for a single player.
+ *
+ * Any number of threads may add messages; only the thread that serves the
+ * player drains them.  Adding a message wakes that thread immediately: either
+ * by unparking it (if it is blocked in await()), or by running the wakeup
+ * callback (used by selector loops).  Wakeups are coalesced, so a burst of
+ * messages costs one wakeup.
+ */
+public class Mailbox {
+
+	/** Messages that have not yet been drained. */
+	protected ConcurrentLinkedQueue<String> messages;
+
+	/** True if a wakeup is pending (set by signal(), cleared by the consumer). */
+	protected AtomicBoolean signalled;
+
+	/** Thread currently blocked in await(), if any. */
+	protected volatile Thread waiter;
+
+	/** Called instead of unparking a waiter, if set. */
+	protected volatile Runnable wakeup;
+
+	/** Constructor. */
+	public Mailbox() {
+		messages = new ConcurrentLinkedQueue<String>();
+		signalled = new AtomicBoolean(false);
+	}
+
+	/** Sets a callback that is run whenever the consumer should wake up. */
+	public void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/** Adds a message, and wakes the consumer. */
+	public void add(String msg) {
+		messages.add(msg);
+		signal();
+	}
+
+	/** Wakes the consumer, unless a wakeup is already pending. */
+	public void signal() {
+		if(signalled.getAndSet(true)) {
+			return;
+		}
+		Runnable w = wakeup;
+		if(w != null) {
+			w.run();
+		} else {
+			Thread t = waiter;
+			if(t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+	}
+
+	/** Returns true if there are no messages waiting. */
+	public boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	/** Moves all waiting messages into the given list, and returns how many
+	 * were moved.  Also clears any pending wakeup.
+	 */
+	public int drainTo(List<String> to) {
+		signalled.set(false);
+		int n = 0;
+		String msg;
+		while((msg = messages.poll()) != null) {
+			to.add(msg);
+			++n;
+		}
+		return n;
+	}
+
+	/** Blocks the calling thread until signalled, or until the given number
+	 * of nanoseconds have passed (0 means wait indefinitely).
+	 */
+	public void await(long nanos) {
+		waiter = Thread.currentThread();
+		try {
+			if(nanos > 0) {
+				if(!signalled.getAndSet(false)) {
+					LockSupport.parkNanos(this, nanos);
+					signalled.set(false);
+				}
+			} else {
+				while(!signalled.getAndSet(false)) {
+					LockSupport.park(this);
+				}
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+}
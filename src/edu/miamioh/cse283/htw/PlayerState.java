@@ -0,0 +1,62 @@
+package edu.miamioh.cse283.htw;
+
+/** What a player carries with them when they migrate from one cave to
+ * another (see Protocol.TRANSFER).
+ */
+public class PlayerState {
+
+	/** Gold the player has. */
+	protected int gold;
+
+	/** Arrows the player has. */
+	protected int arrows;
+
+	/** The player's score. */
+	protected int score;
+
+	/** When this state can no longer be claimed, from System.nanoTime(). */
+	protected long expires;
+
+	/** Constructor. */
+	public PlayerState(int gold, int arrows, int score) {
+		this.gold = gold;
+		this.arrows = arrows;
+		this.score = score;
+	}
+
+	/** Returns the gold the player has. */
+	public int getGold() {
+		return gold;
+	}
+
+	/** Returns the arrows the player has. */
+	public int getArrows() {
+		return arrows;
+	}
+
+	/** Returns the player's score. */
+	public int getScore() {
+		return score;
+	}
+
+	/** Sets how long this state can be claimed for, in milliseconds. */
+	public void expireAfter(long ttl) {
+		expires = System.nanoTime() + ttl * 1000000L;
+	}
+
+	/** Returns true if this state can no longer be claimed. */
+	public boolean isExpired() {
+		return System.nanoTime() - expires > 0;
+	}
+
+	/** Returns this state as it appears in a TRANSFER message. */
+	public String encode() {
+		return gold + " " + arrows + " " + score;
+	}
+
+	/** Returns the state encoded in words[from] onwards, as by encode(). */
+	public static PlayerState decode(String[] words, int from) {
+		return new PlayerState(Integer.parseInt(words[from]),
+				Integer.parseInt(words[from+1]), Integer.parseInt(words[from+2]));
+	}
+}
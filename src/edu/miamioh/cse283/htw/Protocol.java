@@ -9,11 +9,17 @@ public class Protocol {
 	 * from the CaveSystemServer, and then reconnect to the CaveServer
 	 * whose address and port number are given in the message.
 	 * 
+	 * A CaveServer may also send this message to a Client, to move the 
+	 * player to another CaveServer (see MIGRATE); it then includes a token,
+	 * which the Client shall send in a RESUME message as soon as it has
+	 * reconnected, so that the player keeps what they were carrying.
+	 * 
 	 * Format:
-	 *   HANDOFF <addr> <port>
+	 *   HANDOFF <addr> <port> <optional token>
 	 *   
 	 * <addr> is a string that can be passed to InetAddress.getByName()
 	 * <port> is an integer between 1025 and 65535.
+	 * <optional token> is a String without spaces.
 	 */
 	public static final String HANDOFF = "HANDOFF";
 	
@@ -23,14 +29,16 @@ public class Protocol {
 	 * indicate which CaveServer the player has selected to play in.
 	 * 
 	 * Upon reception of this message, the CaveSystemServer shall respond
-	 * with a HANDOFF message.
+	 * with a HANDOFF message, or with a NOTIFICATION if there is no such
+	 * CaveServer (after which the Client may send another CONNECT).
 	 * 
 	 * Format:
 	 *   CONNECT <server name>
 	 *   
 	 * <server name> is a String that the CaveSystemServer uses to lookup
 	 * the address and port number for the CaveServer that the client will
-	 * be handed off to.
+	 * be handed off to.  It may be left out, in which case the 
+	 * CaveSystemServer chooses a CaveServer for the client.
 	 */
 	public static final String CONNECT = "CONNECT";
 	
@@ -136,6 +144,103 @@ public class Protocol {
 	 */
 	public static final String REGISTER = "REGISTER";
 	
+	/** Load message.
+	 * 
+	 * This message is sent from the CaveServer to the CaveSystemServer
+	 * periodically after REGISTER, over the same connection.  It reports
+	 * how busy the CaveServer is, so that the CaveSystemServer can hand
+	 * players off to the caves that have room for them.
+	 * 
+	 * Format:
+	 *   LOAD <players> <rate> <p99> <capacity>
+	 *   
+	 * <players> is the number of players in the cave.
+	 * <rate> is the number of actions handled per second since the last LOAD.
+	 * <p99> is the 99th percentile time taken to handle those actions, in
+	 * microseconds.
+	 * <capacity> is the most players the cave will take, or 0 for no limit.
+	 */
+	public static final String LOAD = "LOAD";
+	
+	/** Heartbeat message.
+	 * 
+	 * This message is sent from the CaveServer to the CaveSystemServer, 
+	 * after REGISTER, whenever it has sent nothing else for a while, so that
+	 * the CaveSystemServer can tell a CaveServer that is idle from one that
+	 * has failed.  The CaveSystemServer answers each HEARTBEAT and each LOAD
+	 * with a HEARTBEAT of its own, so that the CaveServer can tell in turn 
+	 * whether the CaveSystemServer is still there.  Either side that hears
+	 * nothing from the other for too long closes the connection; the 
+	 * CaveServer then reconnects and registers again.
+	 * 
+	 * Format:
+	 *   HEARTBEAT
+	 *   
+	 * (No parameters to this message are allowed.)
+	 */
+	public static final String HEARTBEAT = "HEARTBEAT";
+	
+	/** Migrate message.
+	 * 
+	 * This message is sent from the CaveSystemServer to a CaveServer, to ask
+	 * it to move some of its players to other CaveServers (e.g., to take load
+	 * off it, or to empty it for maintenance).  For each player that it
+	 * moves, the CaveServer stops handling the player's actions, and sends a
+	 * TRANSFER message to the CaveSystemServer.
+	 * 
+	 * Format:
+	 *   MIGRATE <optional count>
+	 *   
+	 * <optional count> is the number of players to move; if it is left out,
+	 * every player is moved.
+	 */
+	public static final String MIGRATE = "MIGRATE";
+	
+	/** Transfer message.
+	 * 
+	 * This message carries a migrating player's state.  It is sent from
+	 * the CaveServer that the player is leaving to the CaveSystemServer,
+	 * which chooses another CaveServer for the player, and forwards the
+	 * message to it unchanged.  That CaveServer keeps the state until the
+	 * player arrives with the token (see RESUME), and answers with MIGRATED.
+	 * 
+	 * Format:
+	 *   TRANSFER <token> <gold> <arrows> <score>
+	 *   
+	 * <token> is a String without spaces, chosen at random by the CaveServer
+	 * that the player is leaving, which can be used only once.
+	 * <gold>, <arrows> and <score> are integers.
+	 */
+	public static final String TRANSFER = "TRANSFER";
+	
+	/** Migrated message.
+	 * 
+	 * This message is sent from the CaveServer that a migrating player is
+	 * going to, to the CaveSystemServer, once it holds the player's state.
+	 * The CaveSystemServer then sends it on to the CaveServer that the player
+	 * is leaving, along with the address and port of the CaveServer that
+	 * the player is going to; that CaveServer then sends the player a 
+	 * HANDOFF with the token.  If there is nowhere for the player to go, the
+	 * address and port are left out, and the player stays where they are.
+	 * 
+	 * Format:
+	 *   MIGRATED <token> <optional addr> <optional port>
+	 */
+	public static final String MIGRATED = "MIGRATED";
+	
+	/** Resume message.
+	 * 
+	 * This message is sent from the Client to a CaveServer that it has been
+	 * handed off to with a token, as its first message.  The player picks up
+	 * the state that was transferred with the token.  Tokens can only be used
+	 * once, and only for a limited time; a RESUME sent after anything else
+	 * is refused.
+	 * 
+	 * Format:
+	 *   RESUME <token>
+	 */
+	public static final String RESUME = "RESUME";
+	
 	/** Action message.
 	 * 
 	 * This message is sent from the Client to the CaveServer when the
@@ -154,10 +259,82 @@ public class Protocol {
 	 *   3: pickup
 	 *   4: climb
 	 * <optional room id> is used by 1:move and 2:shoot to indicate into which
-	 * room a player (arrow) is to be moved (shot).
+	 * room a player (arrow) is to be moved (shot).  2:shoot may be followed by
+	 * several room ids, giving the path that the arrow is to take; where the
+	 * path runs out (or is impossible), the arrow flies at random.
 	 */
 	public static final String MOVE_ACTION = "ACTION 1";
 	public static final String SHOOT_ACTION = "ACTION 2";
 	public static final String PICKUP_ACTION = "ACTION 3";
 	public static final String CLIMB_ACTION = "ACTION 4";
+	
+	/** Binary framing message.
+	 * 
+	 * This message may be sent from the Client to a CaveServer at any time.
+	 * It asks the CaveServer to send all further messages as binary frames
+	 * instead of text.  The CaveServer shall respond with a BINARY line of its
+	 * own, after which everything it sends to that Client is a frame, starting
+	 * with a SENSES frame for the player's current room.  Clients that never
+	 * send this message only ever receive text.
+	 * 
+	 * Format:
+	 *   BINARY
+	 *   
+	 * Frame format:
+	 *   <type> <length> <payload>
+	 *   
+	 * <type> is a single byte, one of the FRAME_ constants below.
+	 * <length> is the length of the payload in bytes, as an unsigned
+	 * big-endian 16-bit integer.
+	 * <payload> depends on the type (all integers are big-endian):
+	 *   FRAME_SENSES: room id (int), number of neighbors (unsigned short), 
+	 *     neighbor ids (int each), hazard bitmask (byte), flags (byte); see
+	 *     the Senses class.
+	 *   FRAME_NOTIFICATION: number of lines (unsigned short), then each line
+	 *     as written by DataOutput.writeUTF().  Notifications too long for
+	 *     one frame are sent as several frames in a row.
+	 *   FRAME_DIED: empty.
+	 *   FRAME_SEQ: sequence number (int); see PIPELINE.
+	 *   FRAME_HANDOFF: the HANDOFF message, as written by 
+	 *     DataOutput.writeUTF().
+	 */
+	public static final String BINARY = "BINARY";
+	public static final int FRAME_SENSES = 1;
+	public static final int FRAME_NOTIFICATION = 2;
+	public static final int FRAME_DIED = 3;
+	public static final int FRAME_SEQ = 4;
+	public static final int FRAME_HANDOFF = 5;
+	
+	/** Pipeline message.
+	 * 
+	 * This message may be sent from the Client to a CaveServer to indicate 
+	 * that the Client will send messages without waiting for the responses
+	 * to earlier ones.  The CaveServer handles messages strictly in the order
+	 * they were sent, and may batch the responses to several messages 
+	 * together.  From then on, once it has responded to a message the 
+	 * CaveServer sends a SEQ message, so that the Client can tell which 
+	 * responses belong to which of its messages.
+	 * 
+	 * Format:
+	 *   PIPELINE
+	 *   
+	 * (No parameters to this message are allowed.)
+	 */
+	public static final String PIPELINE = "PIPELINE";
+	
+	/** Sequence message.
+	 * 
+	 * This message is sent from the CaveServer to a Client that has sent
+	 * PIPELINE, following the response (if any) to each message from that
+	 * Client.  Notifications sent between SEQ messages that are not part of 
+	 * a response (e.g., of a death elsewhere in the cave) may also appear.
+	 * 
+	 * Format:
+	 *   SEQ <number>
+	 *   
+	 * <number> counts the messages received since PIPELINE; i.e., SEQ 0 
+	 * acknowledges the PIPELINE message itself, SEQ 1 follows the response 
+	 * to the next message, and so on.  QUIT is not acknowledged.
+	 */
+	public static final String SEQ = "SEQ";
 }
@@ -0,0 +1,65 @@
+package edu.miamioh.cse283.htw;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Source of the random numbers used by a CaveServer.
+ *
+ * Everything random in a cave is derived from a single seed: the cave
+ * itself is generated from forCave(), and each player session gets its own
+ * generator from forSession(), seeded by mixing the cave's seed with the
+ * number of the session.  Given the seed, a cave and every session in it can
+ * be reproduced exactly (e.g., to replay a game), and since no two sessions
+ * share a generator, they never contend on one.
+ */
+public class RandomSource {
+
+	/** Seed that everything is derived from. */
+	protected long seed;
+
+	/** Number of sessions that have been given generators. */
+	protected AtomicLong sessions;
+
+	/** Constructor. */
+	public RandomSource(long seed) {
+		this.seed = seed;
+		this.sessions = new AtomicLong();
+	}
+
+	/** Returns the seed that everything is derived from. */
+	public long getSeed() {
+		return seed;
+	}
+
+	/** Returns a source for one of several caves that share this seed. */
+	public RandomSource forShard(int shard) {
+		return new RandomSource(mix(seed, -1 - shard));
+	}
+
+	/** Returns a new generator for generating the cave. */
+	public SplittableRandom forCave() {
+		return new SplittableRandom(mix(seed, 0));
+	}
+
+	/** Returns a new generator for the next session (sessions are numbered
+	 * from 1, in the order in which they ask).
+	 */
+	public SplittableRandom forSession() {
+		return forSession(sessions.incrementAndGet());
+	}
+
+	/** Returns a new generator for the given session. */
+	public SplittableRandom forSession(long session) {
+		return new SplittableRandom(mix(seed, session));
+	}
+
+	/** Mixes a seed and a stream number into a new seed (the SplitMix64
+	 * finalizer, applied to seed plus a multiple of the golden ratio).
+	 */
+	public static long mix(long seed, long n) {
+		long z = seed + (n + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
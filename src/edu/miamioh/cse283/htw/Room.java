@@ -1,114 +1,153 @@
-package edu.miamioh.cse283.htw;
-
-import java.util.*;
-
-public class Room {
-	
-	public static final int NONE = 0;
-	public static final int WUMPUS = 1;
-	public static final int HOLE = 2;
-	public static final int BATS = 3;
-	public static final int LADDER = 4;
-	protected int gold = 0;
-	protected int arrows = 0;
-	
-	/** Danger in the room */
-	protected int danger;
-	
-	/** Players currently in this room. */
-	protected ArrayList<ClientProxy> players;
-
-	/** Rooms that this room is connected to. */
-	protected ArrayList<Room> connected;
-
-	/** ID number of this room. */
-	protected int roomId;
-	
-	/** Constructor. */
-	public Room(int danger, int gold) {
-		players = new ArrayList<ClientProxy>();
-		connected = new ArrayList<Room>();
-		this.danger = danger;
-		this.gold += gold;
-		arrows = 0;
-	}
-	
-	/** Set this room's id number. */
-	public void setIdNumber(int n) {
-		roomId = n;
-	}
-
-	/** Get this room's id number. */
-	public int getIdNumber() {
-		return roomId;
-	}
-	
-	/** Connect room r to this room (bidirectional). */
-	public void connectRoom(Room r) {
-		if(r != this && !connected.contains(r))
-			connected.add(r);
-			r.connected.add(this);
-	}
-	
-	/** Called when a player enters this room. */
-	public synchronized void enterRoom(ClientProxy c) {
-		players.add(c);
-	}
-	
-	/** Called when a player leaves this room. */
-	public synchronized void leaveRoom(ClientProxy c) {
-		players.remove(c);
-	}
-
-	/** Returns a connected Room (if room is valid), otherwise returns null. */
-	public Room getRoom(int room) {
-		for(Room r: connected) {
-			if(r.getIdNumber() == room) {
-				return r;
-			}
-		}
-		return null;
-	}
-	
-	/** Returns a string describing what a player sees in this room. */
-	public synchronized ArrayList<String> getSensed() {
-		ArrayList<String> msg = new ArrayList<String>();
-		msg.add("You are in room: " + getIdNumber());
-		String t = "You see tunnels to rooms ";
-		int c = 0;
-		for(Room r : connected) {
-			++c;
-			if(c == connected.size()) {
-				t = t.concat("and " + r.getIdNumber() + ".");
- 			} else {
- 				t = t.concat("" + r.getIdNumber() + ", ");
- 			}
-		}
-		msg.add(t);
-		
-		if(this.gold > 0){
-			msg.add("There's something shiny in the corner! Better pick it up!");
-		}
-		if(this.arrows > 0)	{
-			msg.add("WOAH! IS THAT AN ARROW ON THE GROUND?!");
-		}
-		
-		for(Room r : connected)	{
-			switch(r.danger)	{
-			case WUMPUS:
-				msg.add("You smell Kyle in a nearby room.");
-				break;
-			case HOLE:
-				msg.add("You feel a draft. There's probably a hole or something nearby.");
-				break;
-			case BATS:
-				msg.add("You hear Kyle's minions screeching in a nearby room.");
-				break;
-			case LADDER:
-				msg.add("You smell wood nearby... ");
-			}
-		}
-		
-		return msg;
-	}
-}
+package edu.miamioh.cse283.htw;
+
+import java.util.*;
+import java.util.random.RandomGenerator;
+
+/** A room in a cave.
+ *
+ * A Room is a thin view onto its Cave's arrays: it holds no state of its
+ * own, and two Rooms with the same cave and index are equal.
+ */
+public class Room {
+
+	public static final int NONE = 0;
+	public static final int WUMPUS = 1;
+	public static final int HOLE = 2;
+	public static final int BATS = 3;
+	public static final int LADDER = 4;
+
+	/** Cave this room is in. */
+	protected Cave cave;
+
+	/** Index of this room in the cave. */
+	protected int index;
+
+	/** Constructor. */
+	public Room(Cave cave, int index) {
+		this.cave = cave;
+		this.index = index;
+	}
+
+	/** Returns the index of this room in its cave. */
+	public int getIndex() {
+		return index;
+	}
+
+	/** Get this room's id number. */
+	public int getIdNumber() {
+		return cave.ids[index];
+	}
+
+	/** Returns the danger in this room. */
+	public int getDanger() {
+		return cave.getDanger(index);
+	}
+
+	/** Sets the danger in this room. */
+	public void setDanger(int danger) {
+		cave.setDanger(index, danger);
+	}
+
+	/** Returns the amount of gold in this room. */
+	public int getGold() {
+		return cave.getGold(index);
+	}
+
+	/** Sets the amount of gold in this room. */
+	public void setGold(int gold) {
+		cave.setGold(index, gold);
+	}
+
+	/** Returns the number of arrows in this room. */
+	public int getArrows() {
+		return cave.getArrows(index);
+	}
+
+	/** Sets the number of arrows in this room. */
+	public void setArrows(int arrows) {
+		cave.setArrows(index, arrows);
+	}
+
+	/** Takes all the gold in this room, and returns how much there was. */
+	public int takeGold() {
+		return cave.takeGold(index);
+	}
+
+	/** Takes all the arrows in this room, and returns how many there were. */
+	public int takeArrows() {
+		return cave.takeArrows(index);
+	}
+
+	/** Adds gold and arrows to this room, both at once. */
+	public void drop(int gold, int arrows) {
+		cave.drop(index, gold, arrows);
+	}
+
+	/** Kills the wumpus in this room, leaving the given reward in gold behind;
+	 * returns false if there is no wumpus here.
+	 */
+	public boolean killWumpus(int reward) {
+		return cave.killWumpus(index, reward);
+	}
+
+	/** Called when a player enters this room. */
+	public void enterRoom(Mailbox c) {
+		cave.enterRoom(index, c);
+	}
+
+	/** Called when a player leaves this room. */
+	public void leaveRoom(Mailbox c) {
+		cave.leaveRoom(index, c);
+	}
+
+	/** Returns a connected Room (if room is valid), otherwise returns null.
+	 *
+	 * This takes constant time, however many tunnels this room has.
+	 */
+	public Room getRoom(int room) {
+		int i = cave.getTunnel(index, room);
+		return i < 0 ? null : new Room(cave, i);
+	}
+
+	/** Returns a connected Room, chosen at random. */
+	public Room getRandomRoom(RandomGenerator rng) {
+		return new Room(cave, cave.getRandomTunnel(index, rng));
+	}
+
+	/** Returns the bitmask of dangers in neighboring rooms (see Senses.hazards). */
+	public int getHazards() {
+		return cave.getHazards(index);
+	}
+
+	/** Returns true if a wumpus is within Cave.REACH tunnels of this room. */
+	public boolean isWumpusWithinReach() {
+		return cave.isWumpusWithinReach(index);
+	}
+
+	/** Returns the number of players in this room. */
+	public int getOccupants() {
+		return cave.getOccupants(index);
+	}
+
+	/** Returns what a player in this room senses (cached by the cave). */
+	public Senses getSenses() {
+		return cave.getSenses(index);
+	}
+
+	/** Returns a string describing what a player sees in this room. */
+	public ArrayList<String> getSensed() {
+		return getSenses().toLines();
+	}
+
+	public boolean equals(Object o) {
+		if(!(o instanceof Room)) {
+			return false;
+		}
+		Room r = (Room)o;
+		return r.cave == cave && r.index == index;
+	}
+
+	public int hashCode() {
+		return index;
+	}
+}
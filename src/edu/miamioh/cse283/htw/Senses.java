@@ -0,0 +1,174 @@
+package edu.miamioh.cse283.htw;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** What a player senses in a room.
+ *
+ * This is the structured form of a SENSES message.  The CaveServer sends it
+ * either as text lines (see toLines()) or, to clients that asked for binary
+ * framing, as a SENSES frame (see Protocol.BINARY).
+ *
+ * Once encode() has been called, a Senses holds its lines and both of its
+ * encodings, and must not be changed; the Cave caches encoded Senses so that
+ * they can be sent without being rendered again.
+ */
+public class Senses {
+
+	/** Set in flags if there is gold in the room. */
+	public static final int GOLD = 1;
+
+	/** Set in flags if there are arrows in the room. */
+	public static final int ARROWS = 2;
+
+	/** Set in flags if there are other players in the room. */
+	public static final int PLAYERS = 4;
+
+	/** Id of the room the player is in. */
+	public int roomId;
+
+	/** Ids of the rooms that this room has tunnels to. */
+	public int[] neighbors;
+
+	/** Dangers in neighboring rooms; bit (1 << danger) for each Room danger. */
+	public int hazards;
+
+	/** GOLD, ARROWS and/or PLAYERS. */
+	public int flags;
+
+	/** Lines describing these senses, once encoded. */
+	protected List<String> lines;
+
+	/** SENSES message as text (including BEGIN_SENSES and END_SENSES), once encoded. */
+	protected byte[] text;
+
+	/** SENSES frame (including its header), once encoded. */
+	protected byte[] frame;
+
+	/** Constructor. */
+	public Senses(int roomId, int[] neighbors, int hazards, int flags) {
+		this.roomId = roomId;
+		this.neighbors = neighbors;
+		this.hazards = hazards;
+		this.flags = flags;
+	}
+
+	/** Returns true if a neighboring room holds the given danger. */
+	public boolean near(int danger) {
+		return (hazards & (1 << danger)) != 0;
+	}
+
+	/** Returns the lines that describe these senses to a player. */
+	public ArrayList<String> toLines() {
+		if(lines != null) {
+			return new ArrayList<String>(lines);
+		}
+		ArrayList<String> msg = new ArrayList<String>();
+		msg.add("You are in room: " + roomId);
+		StringBuilder t = new StringBuilder("You see tunnels to rooms ");
+		for(int i=0; i<neighbors.length; ++i) {
+			if(i == neighbors.length-1) {
+				t.append("and ").append(neighbors[i]).append('.');
+			} else {
+				t.append(neighbors[i]).append(", ");
+			}
+		}
+		msg.add(t.toString());
+
+		if((flags & GOLD) != 0) {
+			msg.add("There's something shiny in the corner! Better pick it up!");
+		}
+		if((flags & ARROWS) != 0) {
+			msg.add("WOAH! IS THAT AN ARROW ON THE GROUND?!");
+		}
+		if((flags & PLAYERS) != 0) {
+			msg.add("You hear footsteps. You're not alone in here.");
+		}
+
+		if(near(Room.WUMPUS)) {
+			msg.add("You smell Kyle in a nearby room.");
+		}
+		if(near(Room.HOLE)) {
+			msg.add("You feel a draft. There's probably a hole or something nearby.");
+		}
+		if(near(Room.BATS)) {
+			msg.add("You hear Kyle's minions screeching in a nearby room.");
+		}
+		if(near(Room.LADDER)) {
+			msg.add("You smell wood nearby... ");
+		}
+		return msg;
+	}
+
+	/** Renders the lines and both encodings of these senses, so that later
+	 * calls to toLines(), getText() and getFrame() don't have to.
+	 */
+	public Senses encode() {
+		if(frame != null) {
+			return this;
+		}
+		try {
+			ArrayList<String> msg = toLines();
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			String nl = System.lineSeparator();
+			b.write((Protocol.BEGIN_SENSES + nl).getBytes("UTF-8"));
+			for(String i : msg) {
+				b.write((i + nl).getBytes("UTF-8"));
+			}
+			b.write((Protocol.END_SENSES + nl).getBytes("UTF-8"));
+			byte[] text = b.toByteArray();
+
+			b.reset();
+			DataOutputStream d = new DataOutputStream(b);
+			d.writeByte(Protocol.FRAME_SENSES);
+			d.writeShort(0);
+			write(d);
+			byte[] frame = b.toByteArray();
+			int length = frame.length - 3;
+			frame[1] = (byte)(length >> 8);
+			frame[2] = (byte)length;
+
+			this.lines = Collections.unmodifiableList(msg);
+			this.text = text;
+			this.frame = frame;
+		} catch(IOException ex) {
+			// can't happen; everything is written to memory.
+		}
+		return this;
+	}
+
+	/** Returns the SENSES message as text, including BEGIN_SENSES and END_SENSES. */
+	public byte[] getText() {
+		return encode().text;
+	}
+
+	/** Returns the SENSES frame, including its header. */
+	public byte[] getFrame() {
+		return encode().frame;
+	}
+
+	/** Writes the payload of a SENSES frame. */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(roomId);
+		out.writeShort(neighbors.length);
+		for(int n : neighbors) {
+			out.writeInt(n);
+		}
+		out.writeByte(hazards);
+		out.writeByte(flags);
+	}
+
+	/** Reads the payload of a SENSES frame. */
+	public static Senses read(DataInputStream in) throws IOException {
+		int roomId = in.readInt();
+		int[] neighbors = new int[in.readUnsignedShort()];
+		for(int i=0; i<neighbors.length; ++i) {
+			neighbors[i] = in.readInt();
+		}
+		int hazards = in.readUnsignedByte();
+		int flags = in.readUnsignedByte();
+		return new Senses(roomId, neighbors, hazards, flags);
+	}
+}